@@ -0,0 +1,466 @@
+package jpa.app;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+import javax.persistence.Query;
+
+/**
+ * Limits how many operations run against the database at once, with separate
+ * limits for heavy operations (bulk deletes, reloads, restores) and light
+ * reads, so a burst of bulk deletes holding locks can't also use up the
+ * capacity the reads need.
+ *
+ * An operation that finds its class at the limit waits a short time for a
+ * permit. If the wait queue for its class is already full, or no permit frees
+ * up in time, it is rejected at once with a RejectedException instead of
+ * piling up behind the others.
+ *
+ * Every admitted operation also gets a deadline. Queries passed through
+ * {@link #withTimeout} get the time left as their JDBC query timeout, and
+ * long operations call {@link #checkpoint} between steps, which throws a
+ * CancelledException once the deadline has passed or the operation was
+ * cancelled. Permits are bound to the calling thread, like the units of work
+ * of ReadWriteRouter. Derby keeps a statement waiting for a lock past its
+ * query timeout, so {@link #limitLockWaits} caps those waits as well.
+ *
+ * The limits are configured through system properties, for example:
+ * <pre>
+ * -Dsports.admission.heavy=1 -Dsports.admission.light=8
+ * -Dsports.admission.queue=16 -Dsports.admission.wait=100
+ * -Dsports.timeout.heavy=30000 -Dsports.timeout.light=2000
+ * </pre>
+ */
+public class AdmissionController {
+
+    private static final Logger THE_LOGGER
+            = Logger.getLogger(AdmissionController.class.getName());
+
+    /** System property with the number of heavy operations that may run at once. */
+    public static final String HEAVY_LIMIT = "sports.admission.heavy";
+
+    /** System property with the number of light operations that may run at once. */
+    public static final String LIGHT_LIMIT = "sports.admission.light";
+
+    /** System property with the number of operations of each class that may wait for a permit. */
+    public static final String QUEUE_LIMIT = "sports.admission.queue";
+
+    /** System property with the milliseconds an operation waits for a permit before it is rejected. */
+    public static final String MAX_WAIT = "sports.admission.wait";
+
+    /** System property with the time budget of a heavy operation, in milliseconds. */
+    public static final String HEAVY_TIMEOUT = "sports.timeout.heavy";
+
+    /** System property with the time budget of a light operation, in milliseconds. */
+    public static final String LIGHT_TIMEOUT = "sports.timeout.light";
+
+    /**
+     * The classes of operation, each with its own limit.
+     */
+    public enum Kind {
+        /** Reads of a few rows. */
+        LIGHT,
+        /** Bulk deletes and updates, reloads and snapshots. */
+        HEAVY
+    }
+
+    /** JPADemo menu choices admitted as heavy operations; the rest are light reads. */
+    private static final Set<String> HEAVY_COMMANDS = new HashSet<>(Arrays.asList(
+            "reload", "snapshot", "restore", "remove player", "remove team", "move roster"));
+
+    private final Map<Kind, Lane> lanes = new EnumMap<>(Kind.class);
+    private final long maxWaitMillis;
+    private final ThreadLocal<Permit> currentPermit = new ThreadLocal<>();
+    private final Set<Permit> activePermits = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Creates a controller.
+     *
+     * @param heavyLimit heavy operations that may run at once
+     * @param lightLimit light operations that may run at once
+     * @param queueLimit operations of each class that may wait for a permit
+     * @param maxWaitMillis how long an operation waits for a permit
+     * @param heavyTimeoutMillis time budget of a heavy operation
+     * @param lightTimeoutMillis time budget of a light operation
+     */
+    public AdmissionController(int heavyLimit, int lightLimit, int queueLimit, long maxWaitMillis,
+            long heavyTimeoutMillis, long lightTimeoutMillis) {
+        lanes.put(Kind.HEAVY, new Lane(Kind.HEAVY, heavyLimit, queueLimit, heavyTimeoutMillis));
+        lanes.put(Kind.LIGHT, new Lane(Kind.LIGHT, lightLimit, queueLimit, lightTimeoutMillis));
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    /**
+     * Creates a controller configured from the system properties described
+     * above. By default one heavy operation and two light operations per
+     * processor run at once.
+     *
+     * @return the controller
+     */
+    public static AdmissionController fromSystemProperties() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        return new AdmissionController(
+                Integer.getInteger(HEAVY_LIMIT, 1),
+                Integer.getInteger(LIGHT_LIMIT, 2 * processors),
+                Integer.getInteger(QUEUE_LIMIT, 2 * processors),
+                Long.getLong(MAX_WAIT, 100),
+                Long.getLong(HEAVY_TIMEOUT, 30000),
+                Long.getLong(LIGHT_TIMEOUT, 2000));
+    }
+
+    /**
+     * @param command a JPADemo menu choice
+     * @return the class of operation the command is admitted as
+     */
+    public static Kind kindOf(String command) {
+        return HEAVY_COMMANDS.contains(command.toLowerCase()) ? Kind.HEAVY : Kind.LIGHT;
+    }
+
+    /**
+     * Admits an operation on the calling thread, waiting briefly for a permit
+     * if its class is at its limit. Close the permit (preferably with
+     * try-with-resources) when the operation is done.
+     *
+     * @param kind the class of the operation
+     * @return the permit of the operation
+     * @throws RejectedException if the operation was not admitted
+     */
+    public Permit admit(Kind kind) {
+        if (currentPermit.get() != null) {
+            throw new IllegalStateException("An operation is already admitted on this thread");
+        }
+        Lane lane = lanes.get(kind);
+        int depth = lane.waiting.incrementAndGet();
+        boolean acquired = false;
+        try {
+            if (depth > lane.queueLimit) {
+                throw lane.reject("wait queue is full");
+            }
+            lane.recordDepth(depth);
+            acquired = lane.permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS);
+            if (!acquired) {
+                throw lane.reject("no permit within " + maxWaitMillis + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw lane.reject("interrupted while waiting");
+        } finally {
+            lane.waiting.decrementAndGet();
+        }
+        lane.admitted.incrementAndGet();
+        Permit permit = new Permit(lane);
+        currentPermit.set(permit);
+        activePermits.add(permit);
+        return permit;
+    }
+
+    /**
+     * @return the permit of the operation running on the calling thread, or
+     * null if none was admitted
+     */
+    public Permit current() {
+        return currentPermit.get();
+    }
+
+    /**
+     * Limits a query to the time left to the operation running on the calling
+     * thread. Does nothing outside an admitted operation.
+     *
+     * @param <Q> the type of query
+     * @param query the query to limit
+     * @return the query
+     * @throws CancelledException if the operation has no time left or was cancelled
+     */
+    public <Q extends Query> Q withTimeout(Q query) {
+        Permit permit = currentPermit.get();
+        if (permit != null) {
+            permit.checkpoint();
+            // EclipseLink passes the timeout to JDBC in whole seconds, rounding down,
+            // so round up here or anything under a second would mean no timeout at all
+            long seconds = (permit.getRemainingMillis() + 999) / 1000;
+            query.setHint("javax.persistence.query.timeout", TimeUnit.SECONDS.toMillis(seconds));
+        }
+        return query;
+    }
+
+    /**
+     * Caps how long a statement waits for a lock in a Derby database. Derby
+     * does not stop a lock wait at the JDBC query timeout; it waits
+     * derby.locks.waitTimeout seconds, 60 by default, whatever the budget of
+     * the operation. The property is database-wide, so it is set to the
+     * shorter of the two time budgets, in whole seconds. A Derby system
+     * property of the same name still takes precedence.
+     *
+     * @param emf the factory for the database
+     */
+    public void limitLockWaits(EntityManagerFactory emf) {
+        long seconds = Math.max(1, (getLockWaitMillis() + 999) / 1000);
+        EntityManager em = emf.createEntityManager();
+        try {
+            em.getTransaction().begin();
+            em.createNativeQuery("CALL SYSCS_UTIL.SYSCS_SET_DATABASE_PROPERTY('derby.locks.waitTimeout', '"
+                    + seconds + "')").executeUpdate();
+            em.getTransaction().commit();
+            THE_LOGGER.log(Level.FINE, "Lock waits limited to {0} s", seconds);
+        } catch (PersistenceException e) {
+            // not Derby, or a read-only replica; lock waits are left as they were
+            THE_LOGGER.log(Level.WARNING, "Could not limit lock waits", e);
+        } finally {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            em.close();
+        }
+    }
+
+    /**
+     * @return the longest a statement should wait for a lock, the shorter of
+     * the two time budgets in milliseconds
+     */
+    public long getLockWaitMillis() {
+        return Math.min(lanes.get(Kind.HEAVY).timeoutMillis, lanes.get(Kind.LIGHT).timeoutMillis);
+    }
+
+    /**
+     * Lets the operation running on the calling thread stop between steps.
+     * Does nothing outside an admitted operation.
+     *
+     * @throws CancelledException if the operation has run out of time or was cancelled
+     */
+    public void checkpoint() {
+        Permit permit = currentPermit.get();
+        if (permit != null) {
+            permit.checkpoint();
+        }
+    }
+
+    /**
+     * Cancels every admitted operation; each stops at its next checkpoint.
+     */
+    public void cancelAll() {
+        for (Permit permit : activePermits) {
+            permit.cancel();
+        }
+    }
+
+    /**
+     * @param kind a class of operation
+     * @return the number of operations of that class running now
+     */
+    public int getActiveCount(Kind kind) {
+        Lane lane = lanes.get(kind);
+        return lane.limit - lane.permits.availablePermits();
+    }
+
+    /**
+     * @param kind a class of operation
+     * @return the number of operations of that class waiting for a permit now
+     */
+    public int getQueueDepth(Kind kind) {
+        return Math.max(0, lanes.get(kind).waiting.get());
+    }
+
+    /**
+     * @param kind a class of operation
+     * @return the most operations of that class that have waited for a permit at once
+     */
+    public int getMaxQueueDepth(Kind kind) {
+        return lanes.get(kind).maxDepth.get();
+    }
+
+    /**
+     * @param kind a class of operation
+     * @return the number of operations of that class admitted so far
+     */
+    public long getAdmittedCount(Kind kind) {
+        return lanes.get(kind).admitted.get();
+    }
+
+    /**
+     * @param kind a class of operation
+     * @return the number of operations of that class rejected so far
+     */
+    public long getRejectedCount(Kind kind) {
+        return lanes.get(kind).rejected.get();
+    }
+
+    /**
+     * @param kind a class of operation
+     * @return the number of operations of that class stopped at a checkpoint so far
+     */
+    public long getCancelledCount(Kind kind) {
+        return lanes.get(kind).cancelled.get();
+    }
+
+    /**
+     * Print the limits and counters of each class of operation.
+     *
+     * @param out where to print
+     */
+    public void print(PrintStream out) {
+        out.printf("%-6s %6s %7s %6s %10s %9s %9s %9s%n",
+                "class", "limit", "active", "queue", "max queue", "admitted", "rejected", "cancelled");
+        for (Kind kind : Kind.values()) {
+            out.printf("%-6s %6d %7d %6d %10d %9d %9d %9d%n", kind.name().toLowerCase(),
+                    lanes.get(kind).limit, getActiveCount(kind), getQueueDepth(kind),
+                    getMaxQueueDepth(kind), getAdmittedCount(kind), getRejectedCount(kind),
+                    getCancelledCount(kind));
+        }
+    }
+
+    /**
+     * The limit, wait queue, time budget and counters of one class of operation.
+     */
+    private static final class Lane {
+
+        private final Kind kind;
+        private final int limit;
+        private final int queueLimit;
+        private final long timeoutMillis;
+        private final Semaphore permits;
+        private final AtomicInteger waiting = new AtomicInteger();
+        private final AtomicInteger maxDepth = new AtomicInteger();
+        private final AtomicLong admitted = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong cancelled = new AtomicLong();
+
+        Lane(Kind kind, int limit, int queueLimit, long timeoutMillis) {
+            this.kind = kind;
+            this.limit = limit;
+            this.queueLimit = queueLimit;
+            this.timeoutMillis = timeoutMillis;
+            this.permits = new Semaphore(limit, true);
+        }
+
+        void recordDepth(int depth) {
+            int max = maxDepth.get();
+            while (depth > max && !maxDepth.compareAndSet(max, depth)) {
+                max = maxDepth.get();
+            }
+        }
+
+        RejectedException reject(String reason) {
+            rejected.incrementAndGet();
+            THE_LOGGER.log(Level.FINE, "Rejected {0} operation: {1}", new Object[]{kind, reason});
+            return new RejectedException("Server busy, " + kind.name().toLowerCase()
+                    + " operation rejected (" + reason + "), try again later");
+        }
+    }
+
+    /**
+     * The right of one admitted operation to run, bound to the thread that
+     * was admitted.
+     */
+    public final class Permit implements AutoCloseable {
+
+        private final Lane lane;
+        private final long deadline;
+        private volatile boolean cancelled;
+        private boolean closed;
+
+        private Permit(Lane lane) {
+            this.lane = lane;
+            this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lane.timeoutMillis);
+        }
+
+        /**
+         * @return the class of the operation
+         */
+        public Kind getKind() {
+            return lane.kind;
+        }
+
+        /**
+         * @return the milliseconds left before the operation runs out of time, never negative
+         */
+        public long getRemainingMillis() {
+            return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+        }
+
+        /**
+         * Asks the operation to stop at its next checkpoint. May be called from any thread.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * @return whether the operation was cancelled
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        private void checkpoint() {
+            String reason = null;
+            if (cancelled) {
+                reason = "was cancelled";
+            } else if (Thread.currentThread().isInterrupted()) {
+                reason = "was interrupted";
+            } else if (System.nanoTime() - deadline >= 0) {
+                reason = "ran out of its " + lane.timeoutMillis + " ms";
+            }
+            if (reason != null) {
+                lane.cancelled.incrementAndGet();
+                throw new CancelledException("The " + lane.kind.name().toLowerCase() + " operation " + reason);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            activePermits.remove(this);
+            if (currentPermit.get() == this) {
+                currentPermit.remove();
+            }
+            lane.permits.release();
+        }
+    }
+
+    /**
+     * Thrown when an operation is shed because too many of its class are
+     * already running or waiting.
+     */
+    public static class RejectedException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * @param message why the operation was rejected
+         */
+        public RejectedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Thrown at a checkpoint of an operation that ran out of time or was cancelled.
+     */
+    public static class CancelledException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * @param message why the operation was stopped
+         */
+        public CancelledException(String message) {
+            super(message);
+        }
+    }
+}
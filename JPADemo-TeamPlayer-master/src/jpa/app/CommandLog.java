@@ -0,0 +1,204 @@
+package jpa.app;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records the menu commands run by JPADemo so WorkloadDriver can replay them.
+ * Each line holds the milliseconds since recording started, the command and its
+ * arguments, separated by tabs. Backslashes, tabs and line breaks within an
+ * argument are written as \\, \t, \n and \r, so whatever was typed at a prompt
+ * reads back as it was entered. Recording is switched on by setting the system
+ * property sports.commandlog to a file name; the file is started afresh by each
+ * run, so a log always holds a single session.
+ */
+public class CommandLog {
+
+    /** System property naming the file commands are recorded to. */
+    public static final String COMMAND_LOG = "sports.commandlog";
+
+    private static final Logger THE_LOGGER
+            = Logger.getLogger(CommandLog.class.getName());
+
+    private final BufferedWriter writer;
+    private final long start = System.currentTimeMillis();
+
+    private CommandLog(BufferedWriter writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * @return a log recording to the file named by sports.commandlog, or one
+     * that records nothing if the property is not set or the file can't be opened
+     */
+    public static CommandLog fromSystemProperties() {
+        String file = System.getProperty(COMMAND_LOG);
+        if (file == null || file.isEmpty()) {
+            return new CommandLog(null);
+        }
+        try {
+            return new CommandLog(Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE));
+        } catch (IOException e) {
+            THE_LOGGER.log(Level.WARNING, "Not recording commands, cannot open " + file, e);
+            return new CommandLog(null);
+        }
+    }
+
+    /**
+     * Append a command to the log.
+     *
+     * @param command the menu choice, e.g. "roster"
+     * @param args the values the user entered for it
+     */
+    public synchronized void record(String command, String... args) {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.write(Long.toString(System.currentTimeMillis() - start));
+            writer.write('\t');
+            writer.write(escape(command));
+            for (String arg : args) {
+                writer.write('\t');
+                writer.write(escape(arg));
+            }
+            writer.newLine();
+            writer.flush();
+        } catch (IOException e) {
+            THE_LOGGER.log(Level.WARNING, "Could not record command", e);
+        }
+    }
+
+    /**
+     * Read a recorded log.
+     *
+     * @param file the log file
+     * @return the commands in the order they were recorded
+     * @throws IOException if the file cannot be read
+     */
+    public static List<Command> read(Path file) throws IOException {
+        List<Command> commands = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            String[] fields = line.split("\t", -1);
+            if (fields.length < 2) {
+                throw new IOException("Malformed command log line: " + line);
+            }
+            String[] args = new String[fields.length - 2];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = unescape(fields[i + 2]);
+            }
+            commands.add(new Command(Long.parseLong(fields[0]), unescape(fields[1]), args));
+        }
+        return commands;
+    }
+
+    private static String escape(String field) {
+        StringBuilder escaped = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            switch (c) {
+                case '\\':
+                    escaped.append("\\\\");
+                    break;
+                case '\t':
+                    escaped.append("\\t");
+                    break;
+                case '\n':
+                    escaped.append("\\n");
+                    break;
+                case '\r':
+                    escaped.append("\\r");
+                    break;
+                default:
+                    escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    private static String unescape(String field) throws IOException {
+        if (field.indexOf('\\') < 0) {
+            return field;
+        }
+        StringBuilder unescaped = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c != '\\') {
+                unescaped.append(c);
+                continue;
+            }
+            if (++i == field.length()) {
+                throw new IOException("Malformed command log field: " + field);
+            }
+            switch (field.charAt(i)) {
+                case '\\':
+                    unescaped.append('\\');
+                    break;
+                case 't':
+                    unescaped.append('\t');
+                    break;
+                case 'n':
+                    unescaped.append('\n');
+                    break;
+                case 'r':
+                    unescaped.append('\r');
+                    break;
+                default:
+                    throw new IOException("Malformed command log field: " + field);
+            }
+        }
+        return unescaped.toString();
+    }
+
+    /**
+     * One recorded command.
+     */
+    public static final class Command {
+
+        private final long offsetMillis;
+        private final String name;
+        private final List<String> args;
+
+        Command(long offsetMillis, String name, String[] args) {
+            this.offsetMillis = offsetMillis;
+            this.name = name;
+            this.args = Collections.unmodifiableList(Arrays.asList(args));
+        }
+
+        /**
+         * @return milliseconds between the start of recording and this command
+         */
+        public long getOffsetMillis() {
+            return offsetMillis;
+        }
+
+        /**
+         * @return the menu choice
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the values entered for the command
+         */
+        public List<String> getArgs() {
+            return args;
+        }
+    }
+}
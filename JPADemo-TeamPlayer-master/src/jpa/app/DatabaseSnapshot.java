@@ -0,0 +1,273 @@
+package jpa.app;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+import javax.persistence.PersistenceException;
+
+/**
+ * Saves the TEAM and PLAYER tables to a compact binary file and restores them
+ * with plain JDBC, without creating any entities. Primary keys are kept as they
+ * are, so players still reference their teams through FK_PLAYER_TEAM_ID after
+ * a restore, and the identity columns are restarted past the restored ids.
+ *
+ * The file is a header followed by a TEAM section and a PLAYER section. Each
+ * row starts with a 1 byte, and a 0 byte ends a section. Integers are 4 bytes,
+ * strings are a 4 byte length (-1 for null) followed by UTF-8 bytes.
+ *
+ * The identity restart uses Derby syntax.
+ */
+public final class DatabaseSnapshot {
+
+    private static final Logger THE_LOGGER
+            = Logger.getLogger(DatabaseSnapshot.class.getName());
+
+    private static final int MAGIC = 0x53505254;  // "SPRT"
+    private static final int VERSION = 2;  // 2 added PLAYER.QUOTE
+    private static final int BATCH_SIZE = 1000;
+
+    private static final String SELECT_TEAMS
+            = "SELECT ID, team_name, LEAGUE, CAPTAIN, CITY FROM TEAM ORDER BY ID";
+    private static final String SELECT_PLAYERS
+            = "SELECT ID, first_name, last_name, JERSEYNUMBER, TEAM_ID, QUOTE FROM PLAYER ORDER BY ID";
+    private static final String INSERT_TEAM
+            = "INSERT INTO TEAM (ID, team_name, LEAGUE, CAPTAIN, CITY) VALUES (?, ?, ?, ?, ?)";
+    private static final String INSERT_PLAYER
+            = "INSERT INTO PLAYER (ID, first_name, last_name, JERSEYNUMBER, TEAM_ID, QUOTE) VALUES (?, ?, ?, ?, ?, ?)";
+
+    private DatabaseSnapshot() {
+    }
+
+    /**
+     * Write the contents of the TEAM and PLAYER tables to a file.
+     *
+     * @param em an EntityManager with no active transaction
+     * @param file the file to be created or overwritten
+     * @throws IOException if the file cannot be written
+     */
+    public static void save(EntityManager em, Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            SnapshotWriter out = new SnapshotWriter(channel);
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+
+            EntityTransaction tx = em.getTransaction();
+            tx.begin();
+            try (Statement statement = em.unwrap(Connection.class).createStatement()) {
+                int teams = 0;
+                try (ResultSet rows = statement.executeQuery(SELECT_TEAMS)) {
+                    while (rows.next()) {
+                        out.put((byte) 1);
+                        out.putInt(rows.getInt(1));
+                        out.putString(rows.getString(2));
+                        out.putString(rows.getString(3));
+                        out.putString(rows.getString(4));
+                        out.putString(rows.getString(5));
+                        teams++;
+                    }
+                }
+                out.put((byte) 0);
+
+                int players = 0;
+                try (ResultSet rows = statement.executeQuery(SELECT_PLAYERS)) {
+                    while (rows.next()) {
+                        out.put((byte) 1);
+                        out.putInt(rows.getInt(1));
+                        out.putString(rows.getString(2));
+                        out.putString(rows.getString(3));
+                        out.putInt(rows.getInt(4));
+                        out.putInt(rows.getInt(5));
+                        out.putString(rows.getString(6));
+                        players++;
+                    }
+                }
+                out.put((byte) 0);
+                out.flush();
+                THE_LOGGER.log(Level.FINE, "Saved {0} teams and {1} players", new Object[]{teams, players});
+            } catch (SQLException e) {
+                throw new PersistenceException("Could not read tables for snapshot", e);
+            } finally {
+                tx.rollback();  // nothing was changed
+            }
+        }
+    }
+
+    /**
+     * Replace the contents of the TEAM and PLAYER tables with a saved
+     * snapshot. The EntityManager is cleared and the shared cache evicted
+     * afterwards, since every entity they hold is now stale.
+     *
+     * @param em an EntityManager with no active transaction
+     * @param file a file written by {@link #save}
+     * @throws IOException if the file cannot be read or is not a snapshot
+     */
+    public static void restore(EntityManager em, Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.remaining() < 8 || in.getInt() != MAGIC) {
+                throw new IOException(file + " is not a database snapshot");
+            }
+            int version = in.getInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + " in " + file);
+            }
+
+            EntityTransaction tx = em.getTransaction();
+            tx.begin();
+            try {
+                Connection connection = em.unwrap(Connection.class);
+                try (Statement statement = connection.createStatement()) {
+                    statement.executeUpdate("DELETE FROM PLAYER");
+                    statement.executeUpdate("DELETE FROM TEAM");
+                }
+
+                int maxTeamId = 0;
+                try (PreparedStatement insert = connection.prepareStatement(INSERT_TEAM)) {
+                    int batched = 0;
+                    while (in.get() != 0) {
+                        int id = in.getInt();
+                        maxTeamId = Math.max(maxTeamId, id);
+                        insert.setInt(1, id);
+                        setString(insert, 2, getString(in));
+                        setString(insert, 3, getString(in));
+                        setString(insert, 4, getString(in));
+                        setString(insert, 5, getString(in));
+                        insert.addBatch();
+                        if (++batched % BATCH_SIZE == 0) {
+                            insert.executeBatch();
+                        }
+                    }
+                    insert.executeBatch();
+                }
+
+                int maxPlayerId = 0;
+                try (PreparedStatement insert = connection.prepareStatement(INSERT_PLAYER)) {
+                    int batched = 0;
+                    while (in.get() != 0) {
+                        int id = in.getInt();
+                        maxPlayerId = Math.max(maxPlayerId, id);
+                        insert.setInt(1, id);
+                        setString(insert, 2, getString(in));
+                        setString(insert, 3, getString(in));
+                        insert.setInt(4, in.getInt());
+                        insert.setInt(5, in.getInt());
+                        String quote = version >= 2 ? getString(in) : null;
+                        if (quote == null) {
+                            insert.setNull(6, Types.CLOB);
+                        } else {
+                            insert.setString(6, quote);
+                        }
+                        insert.addBatch();
+                        if (++batched % BATCH_SIZE == 0) {
+                            insert.executeBatch();
+                        }
+                    }
+                    insert.executeBatch();
+                }
+
+                try (Statement statement = connection.createStatement()) {
+                    statement.executeUpdate("ALTER TABLE TEAM ALTER COLUMN ID RESTART WITH " + (maxTeamId + 1));
+                    statement.executeUpdate("ALTER TABLE PLAYER ALTER COLUMN ID RESTART WITH " + (maxPlayerId + 1));
+                }
+                tx.commit();
+            } catch (SQLException e) {
+                throw new PersistenceException("Could not restore snapshot " + file, e);
+            } finally {
+                if (tx.isActive()) {
+                    tx.rollback();
+                }
+            }
+        }
+        em.clear();
+        em.getEntityManagerFactory().getCache().evictAll();
+    }
+
+    private static void setString(PreparedStatement statement, int index, String value) throws SQLException {
+        if (value == null) {
+            statement.setNull(index, Types.VARCHAR);
+        } else {
+            statement.setString(index, value);
+        }
+    }
+
+    private static String getString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Buffers the snapshot and writes it to the channel sequentially.
+     */
+    private static final class SnapshotWriter {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+        SnapshotWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void put(byte value) throws IOException {
+            ensure(1);
+            buffer.put(value);
+        }
+
+        void putInt(int value) throws IOException {
+            ensure(4);
+            buffer.putInt(value);
+        }
+
+        void putString(String value) throws IOException {
+            if (value == null) {
+                putInt(-1);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            putInt(bytes.length);
+            if (bytes.length > buffer.capacity()) {
+                flush();
+                ByteBuffer large = ByteBuffer.wrap(bytes);
+                while (large.hasRemaining()) {
+                    channel.write(large);
+                }
+            } else {
+                ensure(bytes.length);
+                buffer.put(bytes);
+            }
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
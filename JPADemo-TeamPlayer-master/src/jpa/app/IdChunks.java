@@ -0,0 +1,40 @@
+package jpa.app;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Splits ids for the queries with an "IN :ids" parameter, such as
+ * Player.GET_BY_IDS and Player.TRANSFER_BY_IDS. Derby gets much slower to run
+ * an IN list of a few hundred parameters, so the ids are sent SIZE at a time.
+ * The last chunk is padded to SIZE by repeating its last id, so every
+ * statement of a query has the same SQL text and reuses the one prepared
+ * statement, which WarmUp prepares ahead of time.
+ */
+final class IdChunks {
+
+    /** Ids per statement. */
+    static final int SIZE = 100;
+
+    private IdChunks() {
+    }
+
+    /**
+     * @param ids the ids, possibly with duplicates
+     * @return the distinct ids in chunks of exactly SIZE, in their original order
+     */
+    static List<List<Integer>> split(Collection<Integer> ids) {
+        List<Integer> distinct = new ArrayList<>(new LinkedHashSet<>(ids));
+        List<List<Integer>> chunks = new ArrayList<>();
+        for (int start = 0; start < distinct.size(); start += SIZE) {
+            List<Integer> chunk = new ArrayList<>(distinct.subList(start, Math.min(start + SIZE, distinct.size())));
+            while (chunk.size() < SIZE) {
+                chunk.add(chunk.get(chunk.size() - 1));  // matches nothing new
+            }
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+}
@@ -6,6 +6,10 @@
 
 package jpa.app;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Collection;
 import java.util.List;
 import java.util.Scanner;
@@ -13,7 +17,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
-import javax.persistence.Persistence;
+import javax.persistence.PersistenceException;
 import javax.persistence.Query;
 import javax.persistence.TypedQuery;
 import jpa.entities.Player;
@@ -31,23 +35,31 @@ public class JPADemo {
     // Create the EntityManager
     // sportsPU is a Persistence Unit as defined in persistence.xml that is
     // part of this application (it is the META-INF folder)
-    private static final EntityManagerFactory EMF = Persistence.createEntityManagerFactory("SportsPU");
+    // The router sends read-only queries to replicas when any are configured (see ReadWriteRouter)
+    private static final ReadWriteRouter ROUTER = ReadWriteRouter.fromSystemProperties("SportsPU");
+    private static final EntityManagerFactory EMF = ROUTER.getPrimary();
     private static final EntityManager ENTITY_MANAGER = EMF.createEntityManager();
 
+    // File written by the snapshot command and read by the restore command
+    private static final Path SNAPSHOT_FILE = Paths.get(System.getProperty("sports.snapshot", "sports.snapshot"));
+
+    // Player and team names for search-as-you-type, kept current by the methods below
+    private static final NameSearchIndex SEARCH_INDEX = new NameSearchIndex();
+
+    private static final WarmUp WARM_UP = new WarmUp(EMF, ROUTER.getReplicas());
+
+    // Records the commands run so they can be replayed by WorkloadDriver (see CommandLog)
+    private static final CommandLog COMMAND_LOG = CommandLog.fromSystemProperties();
+
+    // Caps how many heavy and light operations run at once and gives each a time budget
+    private static final AdmissionController ADMISSION = AdmissionController.fromSystemProperties();
+
     private static final Scanner USER_INPUT = new Scanner(System.in);
     
     /**
-     * Constructor to setup the initial set of transient objects. 
+     * Constructor; the initial set of transient objects comes from SampleData.
      */
     JPADemo() {
-        for (Player player : PLAYERS_LAKERS) {
-            TEAMS[0].addPlayer(player);  // addPlayer is responsible for setting a player's team
-        }
-
-        for (Player player : PLAYERS_CLIPPERS) {
-            TEAMS[1].addPlayer(player);
-        }
-    
     }
 
     /**
@@ -56,18 +68,49 @@ public class JPADemo {
      */
     public static void main(String[] args) {
         JPADemo demo = new JPADemo();
-        demo.loadDatabase();
+        try (ReadWriteRouter.UnitOfWork work = ROUTER.begin()) {
+            demo.loadDatabase();  // in a unit of work so local replicas are seeded with it
+        }
+
+        // Compile and prepare the named queries before taking the first command
+        WARM_UP.run();
+
+        // Derby waits for locks past the query timeout, so cap the waits too
+        ADMISSION.limitLockWaits(EMF);
+        for (EntityManagerFactory replica : ROUTER.getReplicas()) {
+            ADMISSION.limitLockWaits(replica);
+        }
 
         String userInput;
         do {
             displayMenu();
             userInput = USER_INPUT.nextLine();
-            processInput(demo, userInput);
+            // each command is its own unit of work: reads after a write within it go to the primary
+            try (ReadWriteRouter.UnitOfWork work = ROUTER.begin()) {
+                processInput(demo, userInput);
+            } catch (AdmissionController.RejectedException | AdmissionController.CancelledException
+                    | PersistenceException e) {
+                // EclipseLink reports query and lock wait timeouts as a plain PersistenceException
+                THE_LOGGER.log(Level.FINE, "Command not completed", e);
+                System.out.println("Command not completed: " + e.getMessage());
+                if (ENTITY_MANAGER.getTransaction().isActive()) {
+                    ENTITY_MANAGER.getTransaction().rollback();
+                }
+            }
         } while (! userInput.equalsIgnoreCase("quit"));
     }
 
+    /**
+     * @return true once the startup warm-up has finished and requests will be served at full speed
+     */
+    public static boolean isReady() {
+        return WARM_UP.isReady();
+    }
+
     /**
      * Given some user USER_INPUT of the function to be executed, sets it up and executes it.
+     * The function runs once admitted (see AdmissionController), after the user has entered
+     * its values, so time spent typing does not count against its time budget.
      * @param demo The demo object that has the functions of this demo
      * @param userInput The user's choice of which function to execute
      */
@@ -76,15 +119,39 @@ public class JPADemo {
         
         switch (userInput.toLowerCase()) {
             case "reload":
-                System.out.println("Removing DB of all records");
-                demo.deleteDB();
-                System.out.println("Loading DB with sample initial records");
-                demo.loadDatabase();
+                COMMAND_LOG.record("reload");
+                try (AdmissionController.Permit permit = ADMISSION.admit(AdmissionController.kindOf(userInput))) {
+                    System.out.println("Removing DB of all records");
+                    demo.deleteDB();
+                    System.out.println("Loading DB with sample initial records");
+                    demo.loadDatabase();
+                }
+                break;
+            case "snapshot":
+                System.out.println("Saving DB to snapshot " + SNAPSHOT_FILE);
+                try (AdmissionController.Permit permit = ADMISSION.admit(AdmissionController.kindOf(userInput))) {
+                    demo.saveSnapshot();
+                }
+                break;
+            case "restore":
+                COMMAND_LOG.record("restore");
+                if (!Files.exists(SNAPSHOT_FILE)) {
+                    System.out.println("No snapshot " + SNAPSHOT_FILE + ", use snapshot first");
+                    break;
+                }
+                System.out.println("Restoring DB from snapshot " + SNAPSHOT_FILE);
+                try (AdmissionController.Permit permit = ADMISSION.admit(AdmissionController.kindOf(userInput))) {
+                    demo.restoreSnapshot();
+                }
                 break;
             case "roster":
                 System.out.print("Team name: ");
                 teamName = USER_INPUT.nextLine();
-                Collection<Player> roster = demo.getRoster(teamName);
+                COMMAND_LOG.record("roster", teamName);
+                Collection<Player> roster;
+                try (AdmissionController.Permit permit = ADMISSION.admit(AdmissionController.kindOf(userInput))) {
+                    roster = demo.getRoster(teamName);
+                }
                 if (roster != null && !roster.isEmpty()) {
                     System.out.println("The roster: ");
                     for (Player player : roster)
@@ -99,17 +166,45 @@ public class JPADemo {
                 String firstName = USER_INPUT.nextLine(); 
                 System.out.print("Last name: "); 
                 String lastName = USER_INPUT.nextLine();
-                demo.remove(firstName, lastName);
+                COMMAND_LOG.record("remove player", firstName, lastName);
+                try (AdmissionController.Permit permit = ADMISSION.admit(AdmissionController.kindOf(userInput))) {
+                    demo.remove(firstName, lastName);
+                }
                 break;
             case "find":
                 System.out.println("Find operation using id's");
-                demo.find();
+                COMMAND_LOG.record("find");
+                try (AdmissionController.Permit permit = ADMISSION.admit(AdmissionController.kindOf(userInput))) {
+                    demo.find();
+                }
                 break;
             case "remove team":
                 System.out.println("Remove a Team");
                 System.out.print("Team name: ");
                 teamName = USER_INPUT.nextLine();
-                demo.remove(teamName);
+                COMMAND_LOG.record("remove team", teamName);
+                try (AdmissionController.Permit permit = ADMISSION.admit(AdmissionController.kindOf(userInput))) {
+                    demo.remove(teamName);
+                }
+                break;
+            case "search":
+                System.out.print("Name: ");
+                String name = USER_INPUT.nextLine();
+                COMMAND_LOG.record("search", name);
+                try (AdmissionController.Permit permit = ADMISSION.admit(AdmissionController.kindOf(userInput))) {
+                    demo.search(name);
+                }
+                break;
+            case "move roster":
+                System.out.println("Move all players of a team to another team");
+                System.out.print("From team name: ");
+                String fromTeam = USER_INPUT.nextLine();
+                System.out.print("To team name: ");
+                String toTeam = USER_INPUT.nextLine();
+                COMMAND_LOG.record("move roster", fromTeam, toTeam);
+                try (AdmissionController.Permit permit = ADMISSION.admit(AdmissionController.kindOf(userInput))) {
+                    demo.moveRoster(fromTeam, toTeam);
+                }
                 break;
             default:
                 System.out.println("Invalid choice, try again");
@@ -132,16 +227,18 @@ public class JPADemo {
      * clean up the EntityManager by detaching all objects known to be in it.
      */
     private void deleteDB() {
+        ROUTER.markWrite();
         ENTITY_MANAGER.getTransaction().begin();
         
-        Query deletePlayers = ENTITY_MANAGER.createNamedQuery(Player.DELETE_ALL);
+        Query deletePlayers = ADMISSION.withTimeout(ENTITY_MANAGER.createNamedQuery(Player.DELETE_ALL));
         deletePlayers.executeUpdate();
 
-        Query deleteTeams = ENTITY_MANAGER.createNamedQuery(Team.DELETE_ALL);
+        Query deleteTeams = ADMISSION.withTimeout(ENTITY_MANAGER.createNamedQuery(Team.DELETE_ALL));
         deleteTeams.executeUpdate();
         
         ENTITY_MANAGER.getTransaction().commit();
         ENTITY_MANAGER.clear();
+        SEARCH_INDEX.clear();
         
     }
             
@@ -151,6 +248,7 @@ public class JPADemo {
     private void loadDatabase() {
         // An EntityManager object is used to perform persistence tasks such as
         // starting transactions, persisting objects, creating queries, etc.
+        ROUTER.markWrite();
         ENTITY_MANAGER.getTransaction().begin();
         
         // prior to the statement below, each of the Team objects in the teams array
@@ -167,7 +265,43 @@ public class JPADemo {
 //        ENTITY_MANAGER.persist(pete);
         
         // Now they are all persisted... even players due to the CascadeType (see relationship defined in Team.java)
+        ADMISSION.checkpoint();
         ENTITY_MANAGER.getTransaction().commit();
+
+        for (Team team : TEAMS) {
+            SEARCH_INDEX.addAll(team.getRoster());
+        }
+    }
+
+    /**
+     * Save the current TEAM and PLAYER rows to the snapshot file.
+     */
+    private void saveSnapshot() {
+        ADMISSION.checkpoint();
+        try {
+            DatabaseSnapshot.save(ENTITY_MANAGER, SNAPSHOT_FILE);
+        } catch (IOException | PersistenceException e) {
+            THE_LOGGER.log(Level.SEVERE, "Could not save snapshot", e);
+            System.out.println("Could not save snapshot: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Replace the database contents with the snapshot file, a much faster
+     * alternative to deleteDB() followed by loadDatabase() for large data sets.
+     * If the restore fails the database is left as it was.
+     */
+    private void restoreSnapshot() {
+        ADMISSION.checkpoint();
+        ROUTER.markWrite();
+        try {
+            DatabaseSnapshot.restore(ENTITY_MANAGER, SNAPSHOT_FILE);
+            SEARCH_INDEX.clear();
+            SEARCH_INDEX.load(ENTITY_MANAGER);
+        } catch (IOException | PersistenceException e) {
+            THE_LOGGER.log(Level.SEVERE, "Could not restore snapshot", e);
+            System.out.println("Could not restore snapshot: " + e.getMessage());
+        }
     }
 
     /**
@@ -178,8 +312,10 @@ public class JPADemo {
      */
     private Collection<Player> getRoster(String teamName) {
         // TypedQuery provides strong type checking
-        TypedQuery<Player> retrieveTeamQuery = ENTITY_MANAGER.createNamedQuery(Player.GET_PLAYER_LIST, Player.class);
+        // A read-only query, so it may be served by a replica
+        TypedQuery<Player> retrieveTeamQuery = ROUTER.forRead(ENTITY_MANAGER).createNamedQuery(Player.GET_PLAYER_LIST, Player.class);
         retrieveTeamQuery.setParameter("name", teamName);
+        ADMISSION.withTimeout(retrieveTeamQuery);
         List<Player> teams = retrieveTeamQuery.getResultList();
 
         return teams == null || teams.isEmpty() ? null : teams;
@@ -194,12 +330,15 @@ public class JPADemo {
         TypedQuery<Player> deleteStatement = ENTITY_MANAGER.createNamedQuery(Player.DELETE_BY_NAME, Player.class);
         deleteStatement.setParameter("firstName", firstName);
         deleteStatement.setParameter("lastName", lastName);
+        ADMISSION.withTimeout(deleteStatement);
         
+        ROUTER.markWrite();
         ENTITY_MANAGER.getTransaction().begin();
         deleteStatement.executeUpdate();
         THE_LOGGER.fine("CHECK DB... you'll see named player removed");
 
         ENTITY_MANAGER.getTransaction().commit(); // Before a commit, the remove was not guaranteed
+        SEARCH_INDEX.removeByName(firstName, lastName);
     }
     
     /**
@@ -212,11 +351,65 @@ public class JPADemo {
 
         TypedQuery<Team> deleteStatement = ENTITY_MANAGER.createNamedQuery(Team.DELETE_BY_NAME, Team.class);
         deleteStatement.setParameter("name", teamName);
+        ADMISSION.withTimeout(deleteStatement);
 
+        ROUTER.markWrite();
         ENTITY_MANAGER.getTransaction().begin();
         int count = deleteStatement.executeUpdate();
         THE_LOGGER.log(Level.FINE, "Number of teams deleted: {0}", count);
         ENTITY_MANAGER.getTransaction().commit();
+        SEARCH_INDEX.removeTeam(teamName);
+    }
+
+    /**
+     * Prints the players best matching a partial player or team name, using
+     * the in-memory index rather than a LIKE query.
+     * @param name the (partial) name typed by the user
+     */
+    private void search(String name) {
+        int[] playerIds = SEARCH_INDEX.search(name, 10);
+        if (playerIds.length == 0) {
+            System.out.println("No players found");
+        }
+        EntityManager reader = ROUTER.forRead(ENTITY_MANAGER);
+        for (int playerId : playerIds) {
+            ADMISSION.checkpoint();
+            Player player = reader.find(Player.class, playerId);
+            if (player != null) {
+                System.out.println(player);
+            }
+        }
+    }
+
+    /**
+     * Move every player of one named team to another with a single bulk update.
+     * @param fromTeam the name of the team losing its players
+     * @param toTeam the name of the team gaining them
+     */
+    private void moveRoster(String fromTeam, String toTeam) {
+        Team from = findTeam(fromTeam);
+        Team to = findTeam(toTeam);
+        if (from == null || to == null) {
+            System.out.println("No team named " + (from == null ? fromTeam : toTeam));
+            return;
+        }
+        ADMISSION.checkpoint();
+        ROUTER.markWrite();
+        int count = new PlayerTransfers(ENTITY_MANAGER).transferRoster(from, to);
+        THE_LOGGER.log(Level.FINE, "Number of players moved: {0}", count);
+        SEARCH_INDEX.moveTeam(fromTeam, toTeam);
+    }
+
+    /**
+     * Finds a team given its name.
+     * @param teamName the name of the team
+     * @return the Team, or null if there is no team with that name
+     */
+    private Team findTeam(String teamName) {
+        List<Team> teams = ADMISSION.withTimeout(ENTITY_MANAGER.createNamedQuery(Team.GET_BY_NAME, Team.class))
+                .setParameter("name", teamName)
+                .getResultList();
+        return teams.isEmpty() ? null : teams.get(0);
     }
 
     /**
@@ -231,8 +424,10 @@ public class JPADemo {
         // In the demo below, since we know PK values are auto generated
         // starting at 1, we attempt to find the first 10 players.
         System.out.println("The first players inserted in the database...");
+        EntityManager reader = ROUTER.forRead(ENTITY_MANAGER);
         for (int primaryKey = 1; primaryKey <= 10 && playerFound; primaryKey++) {
-            Player player = ENTITY_MANAGER.find(Player.class, primaryKey);
+            ADMISSION.checkpoint();
+            Player player = reader.find(Player.class, primaryKey);
             if (player != null) {
                 System.out.println(player);
             } else {
@@ -242,36 +437,9 @@ public class JPADemo {
     }
     
     /**
-     * lakersPlayers is an array of Player objects that will all be assigned to
-     * the Los Angeles Lakers Team object.
-     */
-    private static final Player[] PLAYERS_LAKERS = new Player[]{
-        new Player("Kobe", "Bryant", 24, "The Black Mamba"),
-        new Player("Steve", "Nash", 10, "Canadian wonder"),
-        new Player("Lin", "Jeremy", 7, "Linmania")
-    };
-
-    /**
-     * clippersPlayers is an array of Player objects that will all be assigned to
-     * the Los Angeles Clippers Team object.
+     * teams is an array of Team objects, with their players (see SampleData)
      */
-    private static final Player[] PLAYERS_CLIPPERS = new Player[]{
-        new Player("Blake", "Griffin", 32, "The new Highlight Film"),
-        new Player("Jamal", "Crawford", 11, "It's raining three pointers"),
-        new Player("Chris", "Paul", 3, "The nonstop assist generator")
-
-    };
-
-    /**
-     * teams is an array of Team objects, with players to be assigned in a program
-     */
-    private static final Team[] TEAMS = new Team[]{
-        new Team("Los Angeles Lakers", "West"),
-        new Team("Los Angeles Clippers", "West"),
-        new Team("Miami Heat", "East"),
-        new Team("Brooklyn Nets", "East"),
-        new Team("Oklahoma City Thunder", "West")
-    };
+    private static final Team[] TEAMS = SampleData.teams();
     
     /**
      * cities
@@ -287,17 +455,21 @@ public class JPADemo {
     /**
      * Menu choices
      */
-    private static final String MENU_CHOICES[] = {"reload", "find", "roster", "remove player", "remove team", "quit"};
+    private static final String MENU_CHOICES[] = {"reload", "snapshot", "restore", "find", "roster", "remove player", "remove team", "move roster", "search", "quit"};
     
     /**
      * Descriptions of the menu choices
      */
     private static final String CHOICE_SUMMARIES[] = {
         "Reload initial data into the database",
+        "Save the database to the snapshot file",
+        "Replace the database with the snapshot file",
         "Demo of find using object id's",
         "View the name of all players in a team",
         "Remove a player given the name",
         "Remove a team given its name",
+        "Move all players of a team to another team",
+        "Search players by partial player or team name",
         "Quit this program"
     };
 
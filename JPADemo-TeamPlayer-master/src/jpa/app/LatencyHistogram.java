@@ -0,0 +1,109 @@
+package jpa.app;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe histogram of latencies in microseconds. Values below 16 us are
+ * counted exactly; above that each power of two is split into 16 buckets, so a
+ * reported percentile is within about 6% of the recorded value. The maximum is
+ * tracked on its own and is exact.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 16;
+    private static final int SUB_BITS = 4;
+    private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record one latency.
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        counts.incrementAndGet(bucket(micros));
+        max.accumulateAndGet(micros, Math::max);
+    }
+
+    private static int bucket(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) ((micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+        return SUB_BUCKETS + (exponent - SUB_BITS) * SUB_BUCKETS + sub;
+    }
+
+    private static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BITS;
+        int sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+    }
+
+    /**
+     * @return the number of latencies recorded
+     */
+    public long getCount() {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * @return the largest latency recorded in microseconds, or 0 if nothing was recorded
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Gets the latency below which the given fraction of recorded latencies fall.
+     *
+     * @param fraction between 0 and 1, e.g. 0.99 for the 99th percentile
+     * @return the latency in microseconds, or 0 if nothing was recorded; exact for
+     * a fraction of 1, otherwise the lower bound of the bucket it falls in
+     */
+    public long getPercentile(double fraction) {
+        long total = getCount();
+        if (total == 0) {
+            return 0;
+        }
+        if (fraction >= 1) {
+            return getMax();
+        }
+        long target = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return lowerBound(i);
+            }
+        }
+        return lowerBound(BUCKETS - 1);
+    }
+
+    /**
+     * Print the non-empty buckets, one per line, with their share of the total.
+     *
+     * @param out where to print
+     */
+    public void print(PrintStream out) {
+        long total = getCount();
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = counts.get(i);
+            if (count > 0) {
+                out.printf("    >= %8d us  %8d  %5.1f%%%n", lowerBound(i), count, 100.0 * count / total);
+            }
+        }
+    }
+}
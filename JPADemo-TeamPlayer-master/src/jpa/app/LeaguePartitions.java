@@ -0,0 +1,346 @@
+package jpa.app;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Persistence;
+import javax.persistence.PersistenceException;
+import javax.persistence.TypedQuery;
+import jpa.entities.Player;
+import jpa.entities.Team;
+
+/**
+ * Partitioned persistence: teams, and by cascade their players, are stored in
+ * one database per league. Each partition has its own EntityManagerFactory
+ * built from the same persistence unit with a different JDBC url.
+ *
+ * Operations that name a league go to that partition only. Operations that
+ * don't (a lookup by team name alone, deleting everything) are sent to every
+ * partition in parallel and the results gathered. Generated ids are only unique
+ * within a partition, so an id must always be used together with its league.
+ *
+ * Partitions are configured through system properties, e.g. with embedded Derby:
+ * <pre>
+ * -Dsports.jdbc.driver=org.apache.derby.jdbc.EmbeddedDriver
+ * -Dsports.partitions=West,East
+ * -Dsports.partition.West=jdbc:derby:west;create=true
+ * -Dsports.partition.East=jdbc:derby:east;create=true
+ * </pre>
+ */
+public class LeaguePartitions implements AutoCloseable {
+
+    /** System property with the comma separated list of leagues. */
+    public static final String PARTITIONS = "sports.partitions";
+
+    /** Prefix of the system property holding the JDBC url of a league's partition. */
+    public static final String PARTITION_URL_PREFIX = "sports.partition.";
+
+    private final Map<String, EntityManagerFactory> partitions;
+    private final ExecutorService scatterPool;
+
+    /**
+     * Creates one EntityManagerFactory per league.
+     *
+     * @param unitName name of the persistence unit as defined in persistence.xml
+     * @param commonProperties overrides applied to every partition's factory
+     * @param leagueUrls JDBC url of each league's database
+     */
+    public LeaguePartitions(String unitName, Map<String, String> commonProperties,
+            Map<String, String> leagueUrls) {
+        if (leagueUrls.isEmpty()) {
+            throw new IllegalArgumentException("At least one partition is required");
+        }
+        Map<String, EntityManagerFactory> factories = new LinkedHashMap<>();
+        for (Map.Entry<String, String> league : leagueUrls.entrySet()) {
+            Map<String, String> properties = new HashMap<>(commonProperties);
+            properties.put("javax.persistence.jdbc.url", league.getValue());
+            // the primary persistence unit writes schema.sql; every partition would overwrite it
+            properties.put("javax.persistence.schema-generation.scripts.action", "none");
+            factories.put(league.getKey(), Persistence.createEntityManagerFactory(unitName, properties));
+        }
+        partitions = Collections.unmodifiableMap(factories);
+
+        scatterPool = Executors.newFixedThreadPool(partitions.size(), runnable -> {
+            Thread thread = new Thread(runnable, "league-partition-scatter");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Creates the partitions described by the system properties above.
+     *
+     * @param unitName name of the persistence unit as defined in persistence.xml
+     * @return the partitions
+     */
+    public static LeaguePartitions fromSystemProperties(String unitName) {
+        Map<String, String> commonProperties = new HashMap<>();
+        String driver = System.getProperty(ReadWriteRouter.PRIMARY_DRIVER);
+        if (driver != null && !driver.isEmpty()) {
+            commonProperties.put("javax.persistence.jdbc.driver", driver);
+        }
+
+        Map<String, String> leagueUrls = new LinkedHashMap<>();
+        for (String league : System.getProperty(PARTITIONS, "").split(",")) {
+            league = league.trim();
+            if (league.isEmpty()) {
+                continue;
+            }
+            String url = System.getProperty(PARTITION_URL_PREFIX + league);
+            if (url == null) {
+                throw new IllegalArgumentException("No url configured for partition " + league);
+            }
+            leagueUrls.put(league, url);
+        }
+        return new LeaguePartitions(unitName, commonProperties, leagueUrls);
+    }
+
+    /**
+     * @return the leagues that have a partition
+     */
+    public Set<String> getLeagues() {
+        return partitions.keySet();
+    }
+
+    /**
+     * Gets the factory for a league's partition.
+     *
+     * @param league the league name, as in Team.getLeague()
+     * @return the factory of that league's database
+     */
+    public EntityManagerFactory partitionFor(String league) {
+        EntityManagerFactory emf = partitions.get(league);
+        if (emf == null) {
+            throw new IllegalArgumentException("No partition for league " + league);
+        }
+        return emf;
+    }
+
+    /**
+     * Persist a new Team, and its roster, in the partition of its league.
+     *
+     * @param team the transient Team to be persisted
+     */
+    public void persist(Team team) {
+        inTransaction(team.getLeague(), em -> {
+            em.persist(team);
+            return null;
+        });
+    }
+
+    /**
+     * Finds a team by name within a league.
+     *
+     * @param league the league of the team
+     * @param teamName the name of the team
+     * @return the Team, or null if there is no such team in that league
+     */
+    public Team findTeam(String league, String teamName) {
+        return read(league, em -> findTeam(em, teamName));
+    }
+
+    /**
+     * Finds a team by name in whichever partition holds it.
+     *
+     * @param teamName the name of the team
+     * @return the Team, or null if no partition has it
+     */
+    public Team findTeam(String teamName) {
+        for (Team team : scatter(em -> findTeam(em, teamName))) {
+            if (team != null) {
+                return team;
+            }
+        }
+        return null;
+    }
+
+    private static Team findTeam(EntityManager em, String teamName) {
+        List<Team> teams = em.createNamedQuery(Team.GET_BY_NAME, Team.class)
+                .setParameter("name", teamName)
+                .getResultList();
+        return teams.isEmpty() ? null : teams.get(0);
+    }
+
+    /**
+     * Retrieves the players of a team within a league.
+     *
+     * @param league the league of the team
+     * @param teamName the name of the team
+     * @return the players of the team, possibly empty
+     */
+    public List<Player> getRoster(String league, String teamName) {
+        return read(league, em -> getRoster(em, teamName));
+    }
+
+    /**
+     * Retrieves the players of a team from every partition.
+     *
+     * @param teamName the name of the team
+     * @return the players of the team, possibly empty
+     */
+    public List<Player> getRoster(String teamName) {
+        List<Player> roster = new ArrayList<>();
+        for (List<Player> players : scatter(em -> getRoster(em, teamName))) {
+            roster.addAll(players);
+        }
+        return roster;
+    }
+
+    private static List<Player> getRoster(EntityManager em, String teamName) {
+        TypedQuery<Player> query = em.createNamedQuery(Player.GET_PLAYER_LIST, Player.class);
+        query.setParameter("name", teamName);
+        return query.getResultList();
+    }
+
+    /**
+     * Removes players by name from every partition.
+     *
+     * @param firstName first name of the player
+     * @param lastName last name of the player
+     * @return the number of players removed
+     */
+    public int removePlayer(String firstName, String lastName) {
+        return sum(scatterInTransaction(em -> em.createNamedQuery(Player.DELETE_BY_NAME)
+                .setParameter("firstName", firstName)
+                .setParameter("lastName", lastName)
+                .executeUpdate()));
+    }
+
+    /**
+     * Removes a named team, and its players, from a league's partition.
+     *
+     * @param league the league of the team
+     * @param teamName the name of the team
+     * @return the number of teams removed
+     */
+    public int removeTeam(String league, String teamName) {
+        return inTransaction(league, em -> em.createNamedQuery(Team.DELETE_BY_NAME)
+                .setParameter("name", teamName)
+                .executeUpdate());
+    }
+
+    /**
+     * Deletes all players and teams, in parallel across the partitions.
+     *
+     * @return the number of teams deleted
+     */
+    public int deleteAll() {
+        return sum(scatterInTransaction(em -> {
+            em.createNamedQuery(Player.DELETE_ALL).executeUpdate();
+            return em.createNamedQuery(Team.DELETE_ALL).executeUpdate();
+        }));
+    }
+
+    private static int sum(List<Integer> counts) {
+        int total = 0;
+        for (int count : counts) {
+            total += count;
+        }
+        return total;
+    }
+
+    private <T> T read(String league, Function<EntityManager, T> work) {
+        EntityManager em = partitionFor(league).createEntityManager();
+        try {
+            return work.apply(em);
+        } finally {
+            em.close();
+        }
+    }
+
+    private <T> T inTransaction(String league, Function<EntityManager, T> work) {
+        return inTransaction(partitionFor(league), work);
+    }
+
+    private static <T> T inTransaction(EntityManagerFactory emf, Function<EntityManager, T> work) {
+        EntityManager em = emf.createEntityManager();
+        EntityTransaction tx = em.getTransaction();
+        try {
+            tx.begin();
+            T result = work.apply(em);
+            tx.commit();
+            return result;
+        } finally {
+            if (tx.isActive()) {
+                tx.rollback();
+            }
+            em.close();
+        }
+    }
+
+    /**
+     * Runs a read on every partition in parallel.
+     */
+    private <T> List<T> scatter(Function<EntityManager, T> work) {
+        List<Future<T>> futures = new ArrayList<>();
+        for (EntityManagerFactory emf : partitions.values()) {
+            futures.add(scatterPool.submit(() -> {
+                EntityManager em = emf.createEntityManager();
+                try {
+                    return work.apply(em);
+                } finally {
+                    em.close();
+                }
+            }));
+        }
+        return gather(futures);
+    }
+
+    /**
+     * Runs a write on every partition in parallel, one transaction per
+     * partition. A failure in one partition does not roll back the others.
+     */
+    private <T> List<T> scatterInTransaction(Function<EntityManager, T> work) {
+        List<Future<T>> futures = new ArrayList<>();
+        for (EntityManagerFactory emf : partitions.values()) {
+            futures.add(scatterPool.submit(() -> inTransaction(emf, work)));
+        }
+        return gather(futures);
+    }
+
+    private static <T> List<T> gather(List<Future<T>> futures) {
+        List<T> results = new ArrayList<>();
+        PersistenceException failure = null;
+        for (Future<T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new PersistenceException("Interrupted waiting for partitions", e);
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = new PersistenceException("Partitioned operation failed", e.getCause());
+                } else {
+                    failure.addSuppressed(e.getCause());
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return results;
+    }
+
+    /**
+     * Stop the scatter threads and close every partition's factory.
+     */
+    @Override
+    public void close() {
+        scatterPool.shutdown();
+        for (EntityManagerFactory emf : partitions.values()) {
+            emf.close();
+        }
+    }
+}
@@ -0,0 +1,493 @@
+package jpa.app;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import javax.persistence.EntityManager;
+import jpa.entities.Player;
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+import org.eclipse.persistence.queries.ScrollableCursor;
+
+/**
+ * In-memory search-as-you-type index over player and team names. Every word of
+ * a player's first name, last name and team name is indexed by its prefixes
+ * (for completion) and its trigrams (for misspellings). Postings are sorted
+ * int arrays of internal document numbers, so a query is an intersection of a
+ * few arrays followed by scoring the handful of survivors.
+ *
+ * A query matches a player if every word in it matches one of the player's
+ * words. Exact words rank above prefixes, player names above team names, and
+ * a word with no prefix match at all falls back to trigram similarity.
+ *
+ * Removed players are only marked deleted; the index is rebuilt once more than
+ * half of its documents are deleted.
+ */
+public class NameSearchIndex {
+
+    /** Longest prefix indexed; longer query words are checked against the document. */
+    private static final int MAX_PREFIX = 10;
+
+    /** Rows fetched per round trip when building the index from the database. */
+    private static final int FETCH_SIZE = 1000;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private Map<String, IntList> prefixes = new HashMap<>();
+    private Map<String, IntList> trigrams = new HashMap<>();
+    private List<Document> documents = new ArrayList<>();
+    private BitSet deleted = new BitSet();
+    private Map<Integer, Integer> documentOfPlayer = new HashMap<>();
+
+    /**
+     * Builds an index of all players, streaming names from PLAYER and TEAM so
+     * the players are never all held as entities.
+     *
+     * @param em the EntityManager to read with
+     * @return the index
+     */
+    public static NameSearchIndex build(EntityManager em) {
+        NameSearchIndex index = new NameSearchIndex();
+        index.load(em);
+        return index;
+    }
+
+    /**
+     * Adds every player in the database to this index. The names are read
+     * through a single cursor in id order rather than page by page, so the
+     * database walks the rows once instead of skipping past earlier pages.
+     *
+     * @param em the EntityManager to read with
+     */
+    public void load(EntityManager em) {
+        ScrollableCursor cursor = (ScrollableCursor) em.createNamedQuery(Player.GET_SEARCH_NAMES)
+                .setHint(QueryHints.SCROLLABLE_CURSOR, HintValues.TRUE)
+                .setHint(QueryHints.JDBC_FETCH_SIZE, FETCH_SIZE)
+                .getSingleResult();
+        try {
+            while (cursor.hasNext()) {
+                Object[] row = (Object[]) cursor.next();
+                add((Integer) row[0], (String) row[1], (String) row[2], (String) row[3]);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Add or replace a persisted player.
+     *
+     * @param player a player with an id and a team
+     */
+    public void add(Player player) {
+        add(player.getId(), player.getFirstName(), player.getLastName(),
+                player.getTeam() != null ? player.getTeam().getTeamName() : null);
+    }
+
+    /**
+     * Add or replace persisted players.
+     *
+     * @param players players with ids and teams
+     */
+    public void addAll(Collection<Player> players) {
+        for (Player player : players) {
+            add(player);
+        }
+    }
+
+    /**
+     * Add or replace a player.
+     *
+     * @param playerId the player's id
+     * @param firstName the player's first name
+     * @param lastName the player's last name
+     * @param teamName the name of the player's team
+     */
+    public void add(int playerId, String firstName, String lastName, String teamName) {
+        lock.writeLock().lock();
+        try {
+            Integer previous = documentOfPlayer.get(playerId);
+            if (previous != null) {
+                deleted.set(previous);
+            }
+            int doc = documents.size();
+            Document document = new Document(playerId, firstName, lastName, teamName);
+            documents.add(document);
+            documentOfPlayer.put(playerId, doc);
+            for (String word : document.nameWords) {
+                post(word, doc);
+            }
+            for (String word : document.teamWords) {
+                post(word, doc);
+            }
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void post(String word, int doc) {
+        for (int length = 1; length <= Math.min(word.length(), MAX_PREFIX); length++) {
+            prefixes.computeIfAbsent(word.substring(0, length), key -> new IntList()).add(doc);
+        }
+        for (String gram : trigramsOf(word)) {
+            trigrams.computeIfAbsent(gram, key -> new IntList()).add(doc);
+        }
+    }
+
+    /**
+     * Remove a player.
+     *
+     * @param playerId the id of the player
+     */
+    public void remove(int playerId) {
+        lock.writeLock().lock();
+        try {
+            Integer doc = documentOfPlayer.remove(playerId);
+            if (doc != null) {
+                deleted.set(doc);
+                compactIfNeeded();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove players by name, mirroring Player.DELETE_BY_NAME.
+     *
+     * @param firstName the first name of the players
+     * @param lastName the last name of the players
+     */
+    public void removeByName(String firstName, String lastName) {
+        removeMatching(document -> equal(document.firstName, firstName) && equal(document.lastName, lastName));
+    }
+
+    /**
+     * Remove the players of a team, mirroring Team.DELETE_BY_NAME and its cascade.
+     *
+     * @param teamName the name of the team
+     */
+    public void removeTeam(String teamName) {
+        removeMatching(document -> equal(document.teamName, teamName));
+    }
+
+    private void removeMatching(Predicate<Document> condition) {
+        lock.writeLock().lock();
+        try {
+            for (int doc = deleted.nextClearBit(0); doc < documents.size(); doc = deleted.nextClearBit(doc + 1)) {
+                Document document = documents.get(doc);
+                if (condition.test(document)) {
+                    deleted.set(doc);
+                    documentOfPlayer.remove(document.playerId);
+                }
+            }
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Re-index the players of one team under another team's name, mirroring
+     * PlayerTransfers.transferRoster.
+     *
+     * @param fromTeam the name of the team losing its players
+     * @param toTeam the name of the team gaining them
+     */
+    public void moveTeam(String fromTeam, String toTeam) {
+        lock.writeLock().lock();
+        try {
+            List<Document> moved = new ArrayList<>();
+            for (int doc = deleted.nextClearBit(0); doc < documents.size(); doc = deleted.nextClearBit(doc + 1)) {
+                if (equal(documents.get(doc).teamName, fromTeam)) {
+                    moved.add(documents.get(doc));
+                }
+            }
+            for (Document document : moved) {
+                add(document.playerId, document.firstName, document.lastName, toTeam);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove every player.
+     */
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            prefixes = new HashMap<>();
+            trigrams = new HashMap<>();
+            documents = new ArrayList<>();
+            deleted = new BitSet();
+            documentOfPlayer = new HashMap<>();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of players in the index
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return documentOfPlayer.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Search for players.
+     *
+     * @param query words typed so far, the last possibly incomplete
+     * @param limit the maximum number of results
+     * @return ids of the matching players, best match first
+     */
+    public int[] search(String query, int limit) {
+        String[] words = words(query);
+        if (words.length == 0 || limit <= 0) {
+            return new int[0];
+        }
+
+        lock.readLock().lock();
+        try {
+            // Candidates per word, intersected smallest first so the result shrinks fast
+            IntList[] candidates = new IntList[words.length];
+            boolean[] fuzzy = new boolean[words.length];
+            for (int i = 0; i < words.length; i++) {
+                candidates[i] = prefixes.get(words[i].length() > MAX_PREFIX
+                        ? words[i].substring(0, MAX_PREFIX) : words[i]);
+                if (candidates[i] == null) {
+                    candidates[i] = fuzzyCandidates(words[i]);
+                    fuzzy[i] = true;
+                }
+            }
+            IntList[] bySize = candidates.clone();
+            Arrays.sort(bySize, (a, b) -> Integer.compare(a.size, b.size));
+            IntList matches = bySize[0];
+            for (int i = 1; i < bySize.length; i++) {
+                matches = intersect(matches, bySize[i]);
+            }
+
+            int count = 0;
+            int[] docs = new int[matches.size];
+            double[] scores = new double[matches.size];
+            for (int m = 0; m < matches.size; m++) {
+                int doc = matches.data[m];
+                if (deleted.get(doc)) {
+                    continue;
+                }
+                double score = score(documents.get(doc), words, fuzzy);
+                if (score > 0) {
+                    docs[count] = doc;
+                    scores[count] = score;
+                    count++;
+                }
+            }
+            return best(docs, scores, count, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private IntList fuzzyCandidates(String word) {
+        Set<String> grams = trigramsOf(word);
+        Map<Integer, int[]> shared = new HashMap<>();
+        for (String gram : grams) {
+            IntList postings = trigrams.get(gram);
+            if (postings != null) {
+                for (int i = 0; i < postings.size; i++) {
+                    shared.computeIfAbsent(postings.data[i], doc -> new int[1])[0]++;
+                }
+            }
+        }
+        int needed = (grams.size() + 1) / 2;
+        IntList result = new IntList();
+        for (Map.Entry<Integer, int[]> entry : shared.entrySet()) {
+            if (entry.getValue()[0] >= needed) {
+                result.add(entry.getKey());
+            }
+        }
+        Arrays.sort(result.data, 0, result.size);
+        return result;
+    }
+
+    private static double score(Document document, String[] words, boolean[] fuzzy) {
+        double total = 0;
+        for (int i = 0; i < words.length; i++) {
+            double best = 0;
+            for (String word : document.nameWords) {
+                best = Math.max(best, fuzzy[i] ? 2 * similarity(words[i], word) : match(words[i], word, 4, 3));
+            }
+            for (String word : document.teamWords) {
+                best = Math.max(best, fuzzy[i] ? similarity(words[i], word) : match(words[i], word, 2, 1.5));
+            }
+            if (best == 0) {
+                return 0;  // a long query word whose indexed prefix matched but the rest didn't
+            }
+            total += best;
+        }
+        // prefer the shorter name when the words match equally well
+        return total - document.length / 1000.0;
+    }
+
+    private static double match(String query, String word, double exact, double prefix) {
+        if (word.equals(query)) {
+            return exact;
+        }
+        return word.startsWith(query) ? prefix : 0;
+    }
+
+    private static double similarity(String query, String word) {
+        Set<String> a = trigramsOf(query);
+        Set<String> b = trigramsOf(word);
+        int shared = 0;
+        for (String gram : a) {
+            if (b.contains(gram)) {
+                shared++;
+            }
+        }
+        return (double) shared / (a.size() + b.size() - shared);
+    }
+
+    private int[] best(int[] docs, double[] scores, int count, int limit) {
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(scores[b], scores[a]));
+        int[] ids = new int[Math.min(limit, count)];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = documents.get(docs[order[i]]).playerId;
+        }
+        return ids;
+    }
+
+    private static IntList intersect(IntList a, IntList b) {
+        IntList result = new IntList();
+        int i = 0;
+        int j = 0;
+        while (i < a.size && j < b.size) {
+            if (a.data[i] < b.data[j]) {
+                i++;
+            } else if (a.data[i] > b.data[j]) {
+                j++;
+            } else {
+                result.add(a.data[i]);
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Rebuild without the deleted documents once they are the majority.
+     */
+    private void compactIfNeeded() {
+        if (deleted.cardinality() * 2 <= documents.size()) {
+            return;
+        }
+        List<Document> live = new ArrayList<>();
+        for (int doc = deleted.nextClearBit(0); doc < documents.size(); doc = deleted.nextClearBit(doc + 1)) {
+            live.add(documents.get(doc));
+        }
+        clear();
+        for (Document document : live) {
+            int doc = documents.size();
+            documents.add(document);
+            documentOfPlayer.put(document.playerId, doc);
+            for (String word : document.nameWords) {
+                post(word, doc);
+            }
+            for (String word : document.teamWords) {
+                post(word, doc);
+            }
+        }
+    }
+
+    private static String[] words(String text) {
+        if (text == null) {
+            return new String[0];
+        }
+        List<String> words = new ArrayList<>();
+        for (String word : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty()) {
+                words.add(word);  // a leading separator splits off an empty first word
+            }
+        }
+        return words.toArray(new String[words.size()]);
+    }
+
+    private static Set<String> trigramsOf(String word) {
+        String padded = "$" + word + "$";
+        Set<String> grams = new HashSet<>();
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            grams.add(padded.substring(i, i + 3));
+        }
+        return grams;
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * The names of one player as indexed.
+     */
+    private static final class Document {
+
+        private final int playerId;
+        private final String firstName;
+        private final String lastName;
+        private final String teamName;
+        private final String[] nameWords;
+        private final String[] teamWords;
+        private final int length;
+
+        Document(int playerId, String firstName, String lastName, String teamName) {
+            this.playerId = playerId;
+            this.firstName = firstName;
+            this.lastName = lastName;
+            this.teamName = teamName;
+            List<String> names = new ArrayList<>(Arrays.asList(words(firstName)));
+            names.addAll(Arrays.asList(words(lastName)));
+            nameWords = names.toArray(new String[names.size()]);
+            teamWords = words(teamName);
+            length = (firstName != null ? firstName.length() : 0) + (lastName != null ? lastName.length() : 0);
+        }
+    }
+
+    /**
+     * A growable, ascending list of document numbers.
+     */
+    private static final class IntList {
+
+        private int[] data = new int[4];
+        private int size;
+
+        void add(int value) {
+            if (size > 0 && data[size - 1] == value) {
+                return;  // the same document posting a prefix shared by two of its words
+            }
+            if (size == data.length) {
+                data = Arrays.copyOf(data, size * 2);
+            }
+            data[size++] = value;
+        }
+    }
+}
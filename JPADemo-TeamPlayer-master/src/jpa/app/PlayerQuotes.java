@@ -0,0 +1,57 @@
+package jpa.app;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.persistence.EntityManager;
+import jpa.entities.Player;
+
+/**
+ * Reads the quotes of many players at once. Player.quote is a lazily loaded
+ * LOB so roster queries stay small; calling getLastSpokenWords() on each
+ * player of a page would then cost one SELECT per player, while this costs one
+ * per chunk of ids (see IdChunks) and creates no entities.
+ */
+public final class PlayerQuotes {
+
+    private PlayerQuotes() {
+    }
+
+    /**
+     * Read the quotes of the given players.
+     *
+     * @param em the EntityManager to query with
+     * @param playerIds ids of the players whose quotes are wanted
+     * @return the quote of each player found, keyed by player id; players
+     * without a quote map to null
+     */
+    public static Map<Integer, String> fetch(EntityManager em, Collection<Integer> playerIds) {
+        Map<Integer, String> quotes = new HashMap<>();
+        for (List<Integer> chunk : IdChunks.split(playerIds)) {
+            List<Object[]> rows = em.createNamedQuery(Player.GET_QUOTES, Object[].class)
+                    .setParameter("ids", chunk)
+                    .getResultList();
+            for (Object[] row : rows) {
+                quotes.put((Integer) row[0], (String) row[1]);
+            }
+        }
+        return quotes;
+    }
+
+    /**
+     * Read the quotes of the given players.
+     *
+     * @param em the EntityManager to query with
+     * @param players the players whose quotes are wanted
+     * @return the quote of each player, keyed by player id
+     */
+    public static Map<Integer, String> fetchFor(EntityManager em, Collection<Player> players) {
+        List<Integer> ids = new ArrayList<>();
+        for (Player player : players) {
+            ids.add(player.getId());
+        }
+        return fetch(em, ids);
+    }
+}
@@ -0,0 +1,180 @@
+package jpa.app;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.persistence.Cache;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+import javax.persistence.PersistenceUnitUtil;
+import jpa.entities.Player;
+import jpa.entities.Team;
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+
+/**
+ * Moves players between teams with set-based UPDATE statements instead of
+ * loading each Player and changing its team through Team.removePlayer and
+ * Team.addPlayer. A list of players is moved in chunks, one UPDATE per chunk
+ * (see IdChunks), and a whole roster is moved with a single UPDATE.
+ *
+ * Bulk updates bypass the persistence context, so after the transaction
+ * commits the shared cache entries for the players and affected teams are
+ * evicted. The affected teams that the EntityManager is managing are
+ * refreshed, and so are the managed players that were on their rosters or
+ * were moved.
+ */
+public class PlayerTransfers {
+
+    private static final Logger THE_LOGGER
+            = Logger.getLogger(PlayerTransfers.class.getName());
+
+    private final EntityManager em;
+
+    /**
+     * @param em the EntityManager whose persistence context is kept up to date
+     */
+    public PlayerTransfers(EntityManager em) {
+        this.em = em;
+    }
+
+    /**
+     * Move players to a team.
+     *
+     * @param players the players to be moved; only their ids and teams are read
+     * @param to the team the players are moved to; must already be persisted
+     * @return the number of players moved
+     */
+    public int transfer(Collection<Player> players, Team to) {
+        List<Integer> ids = new ArrayList<>();
+        Set<Team> teams = new LinkedHashSet<>();
+        teams.add(to);
+        for (Player player : players) {
+            ids.add(player.getId());
+            if (player.getTeam() != null) {
+                teams.add(player.getTeam());
+            }
+        }
+        Set<Integer> affectedTeams = new LinkedHashSet<>();
+        affectedTeams.add(to.getId());
+        Set<Player> stale = staleBeforeMove(teams);
+        for (Player player : players) {
+            if (em.contains(player)) {
+                stale.add(player);
+            }
+        }
+
+        int moved = 0;
+        EntityTransaction tx = em.getTransaction();
+        tx.begin();
+        try {
+            for (List<Integer> chunk : IdChunks.split(ids)) {
+                affectedTeams.addAll(em.createNamedQuery(Player.GET_TEAM_IDS, Integer.class)
+                        .setParameter("ids", chunk)
+                        .getResultList());
+                moved += em.createNamedQuery(Player.TRANSFER_BY_IDS)
+                        .setParameter("team", to)
+                        .setParameter("ids", chunk)
+                        .executeUpdate();
+            }
+            tx.commit();
+        } finally {
+            if (tx.isActive()) {
+                tx.rollback();
+            }
+        }
+        THE_LOGGER.log(Level.FINE, "Moved {0} players to {1}", new Object[]{moved, to.getTeamName()});
+
+        synchronize(affectedTeams, teams, stale);
+        return moved;
+    }
+
+    /**
+     * Move every player of one team to another.
+     *
+     * @param from the team losing its players
+     * @param to the team gaining them
+     * @return the number of players moved
+     */
+    public int transferRoster(Team from, Team to) {
+        List<Team> teams = Arrays.asList(from, to);
+        Set<Player> stale = staleBeforeMove(teams);
+
+        int moved;
+        EntityTransaction tx = em.getTransaction();
+        tx.begin();
+        try {
+            moved = em.createNamedQuery(Player.TRANSFER_ROSTER)
+                    .setParameter("from", from)
+                    .setParameter("to", to)
+                    .executeUpdate();
+            tx.commit();
+        } finally {
+            if (tx.isActive()) {
+                tx.rollback();
+            }
+        }
+        THE_LOGGER.log(Level.FINE, "Moved {0} players from {1} to {2}",
+                new Object[]{moved, from.getTeamName(), to.getTeamName()});
+
+        Set<Integer> affectedTeams = new LinkedHashSet<>();
+        affectedTeams.add(from.getId());
+        affectedTeams.add(to.getId());
+        synchronize(affectedTeams, teams, stale);
+        return moved;
+    }
+
+    /**
+     * Collects the managed players on the loaded rosters of the managed teams,
+     * which still point at their old team once the UPDATE has run. Rosters
+     * that were never loaded hold nothing stale and are left unloaded.
+     */
+    private Set<Player> staleBeforeMove(Collection<Team> teams) {
+        PersistenceUnitUtil util = em.getEntityManagerFactory().getPersistenceUnitUtil();
+        Set<Player> stale = new LinkedHashSet<>();
+        for (Team team : teams) {
+            if (em.contains(team) && util.isLoaded(team, "roster")) {
+                for (Player player : team.getRoster()) {
+                    if (em.contains(player)) {
+                        stale.add(player);
+                    }
+                }
+            }
+        }
+        return stale;
+    }
+
+    /**
+     * Bring the caches in line with the database after a bulk update.
+     */
+    private void synchronize(Set<Integer> teamIds, Collection<Team> teams, Set<Player> stale) {
+        Cache cache = em.getEntityManagerFactory().getCache();
+        cache.evict(Player.class);
+        for (Integer teamId : teamIds) {
+            cache.evict(Team.class, teamId);
+        }
+
+        for (Team team : teams) {
+            if (em.contains(team)) {
+                em.refresh(team);  // reloads the roster
+            }
+        }
+
+        // Players are refreshed a chunk at a time rather than with one em.refresh() each
+        List<Integer> ids = new ArrayList<>();
+        for (Player player : stale) {
+            ids.add(player.getId());
+        }
+        for (List<Integer> chunk : IdChunks.split(ids)) {
+            em.createNamedQuery(Player.GET_BY_IDS)
+                    .setParameter("ids", chunk)
+                    .setHint(QueryHints.REFRESH, HintValues.TRUE)
+                    .getResultList();
+        }
+    }
+}
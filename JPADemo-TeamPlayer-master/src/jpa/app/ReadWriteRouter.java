@@ -0,0 +1,290 @@
+package jpa.app;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import javax.persistence.PersistenceException;
+
+/**
+ * Routes read-only work to replica databases and everything else to the
+ * primary. Each replica gets its own EntityManagerFactory built from the same
+ * persistence unit with the JDBC url replaced; replicas are never written to and
+ * their schema is never generated, keeping them in sync is the job of the
+ * database's replication.
+ *
+ * Reads are routed per unit of work: the first read picks a replica
+ * (round-robin) and every read in that unit of work uses it, until the unit of
+ * work writes to the primary. From then on its reads go to the primary too, so
+ * a caller always sees its own writes.
+ *
+ * The targets are configured through system properties. Embedded Derby
+ * databases have no replication, so for trying the demo locally the router can
+ * stand in for it: with sports.replica.local set, the replica schemas are
+ * generated like the primary's, and the primary is copied into every replica
+ * (with DatabaseSnapshot) each time a unit of work that wrote is closed. For
+ * example:
+ * <pre>
+ * -Dsports.jdbc.driver=org.apache.derby.jdbc.EmbeddedDriver
+ * -Dsports.jdbc.url=jdbc:derby:primary;create=true
+ * -Dsports.replica.urls=jdbc:derby:replica1;create=true
+ * -Dsports.replica.local=true
+ * </pre>
+ */
+public class ReadWriteRouter {
+
+    /** System property overriding the JDBC url of the primary. */
+    public static final String PRIMARY_URL = "sports.jdbc.url";
+
+    /** System property overriding the JDBC driver of the primary and, by default, the replicas. */
+    public static final String PRIMARY_DRIVER = "sports.jdbc.driver";
+
+    /** System property with a comma separated list of replica JDBC urls. */
+    public static final String REPLICA_URLS = "sports.replica.urls";
+
+    /** System property overriding the JDBC driver of the replicas. */
+    public static final String REPLICA_DRIVER = "sports.replica.driver";
+
+    /** System property that turns on local replication, for trying replicas out with embedded databases. */
+    public static final String REPLICA_LOCAL = "sports.replica.local";
+
+    private final EntityManagerFactory primary;
+    private final List<EntityManagerFactory> replicas;
+    private final boolean localReplication;
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    private final ThreadLocal<UnitOfWork> currentWork = new ThreadLocal<>();
+
+    /**
+     * Creates a router for a persistence unit.
+     *
+     * @param unitName name of the persistence unit as defined in persistence.xml
+     * @param primaryProperties overrides applied to the primary's factory
+     * @param replicaProperties overrides applied to every replica's factory
+     * @param replicaUrls JDBC urls of the replicas, may be empty
+     */
+    public ReadWriteRouter(String unitName, Map<String, String> primaryProperties,
+            Map<String, String> replicaProperties, List<String> replicaUrls) {
+        this(unitName, primaryProperties, replicaProperties, replicaUrls, false);
+    }
+
+    /**
+     * Creates a router for a persistence unit.
+     *
+     * @param unitName name of the persistence unit as defined in persistence.xml
+     * @param primaryProperties overrides applied to the primary's factory
+     * @param replicaProperties overrides applied to every replica's factory
+     * @param replicaUrls JDBC urls of the replicas, may be empty
+     * @param localReplication whether to generate the replica schemas and copy
+     * the primary into the replicas after every unit of work that wrote
+     */
+    public ReadWriteRouter(String unitName, Map<String, String> primaryProperties,
+            Map<String, String> replicaProperties, List<String> replicaUrls, boolean localReplication) {
+        primary = Persistence.createEntityManagerFactory(unitName, primaryProperties);
+        this.localReplication = localReplication;
+
+        List<EntityManagerFactory> factories = new ArrayList<>();
+        for (String url : replicaUrls) {
+            Map<String, String> properties = new HashMap<>(replicaProperties);
+            properties.put("javax.persistence.jdbc.url", url);
+            if (!localReplication) {
+                properties.put("javax.persistence.schema-generation.database.action", "none");
+            }
+            properties.put("javax.persistence.schema-generation.scripts.action", "none");
+            factories.add(Persistence.createEntityManagerFactory(unitName, properties));
+        }
+        replicas = Collections.unmodifiableList(factories);
+    }
+
+    /**
+     * Creates a router configured from the system properties described above.
+     * Without any of them set it behaves exactly like a single factory for the
+     * persistence unit.
+     *
+     * @param unitName name of the persistence unit as defined in persistence.xml
+     * @return the router
+     */
+    public static ReadWriteRouter fromSystemProperties(String unitName) {
+        Map<String, String> primaryProperties = new HashMap<>();
+        putIfSet(primaryProperties, "javax.persistence.jdbc.url", System.getProperty(PRIMARY_URL));
+        putIfSet(primaryProperties, "javax.persistence.jdbc.driver", System.getProperty(PRIMARY_DRIVER));
+
+        Map<String, String> replicaProperties = new HashMap<>();
+        putIfSet(replicaProperties, "javax.persistence.jdbc.driver",
+                System.getProperty(REPLICA_DRIVER, System.getProperty(PRIMARY_DRIVER)));
+
+        List<String> replicaUrls = new ArrayList<>();
+        for (String url : System.getProperty(REPLICA_URLS, "").split(",")) {
+            if (!url.trim().isEmpty()) {
+                replicaUrls.add(url.trim());
+            }
+        }
+        return new ReadWriteRouter(unitName, primaryProperties, replicaProperties, replicaUrls,
+                Boolean.getBoolean(REPLICA_LOCAL));
+    }
+
+    private static void putIfSet(Map<String, String> properties, String key, String value) {
+        if (value != null && !value.isEmpty()) {
+            properties.put(key, value);
+        }
+    }
+
+    /**
+     * @return the factory for the primary database, used for all writes
+     */
+    public EntityManagerFactory getPrimary() {
+        return primary;
+    }
+
+    /**
+     * @return the factories for the replicas, in the order reads rotate through them
+     */
+    public List<EntityManagerFactory> getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * @return the number of configured replicas
+     */
+    public int getReplicaCount() {
+        return replicas.size();
+    }
+
+    /**
+     * Starts a unit of work bound to the calling thread. Close it (preferably
+     * with try-with-resources) to release the replica EntityManager it used.
+     *
+     * @return the new unit of work
+     */
+    public UnitOfWork begin() {
+        if (currentWork.get() != null) {
+            throw new IllegalStateException("A unit of work is already active on this thread");
+        }
+        UnitOfWork work = new UnitOfWork();
+        currentWork.set(work);
+        return work;
+    }
+
+    /**
+     * Chooses the EntityManager for a read-only operation. Outside a unit of
+     * work, without replicas, or once the unit of work has written, this is the
+     * given primary EntityManager.
+     *
+     * @param primaryManager the caller's EntityManager on the primary
+     * @return the EntityManager to run the read against
+     */
+    public EntityManager forRead(EntityManager primaryManager) {
+        UnitOfWork work = currentWork.get();
+        if (work == null || work.wrote || replicas.isEmpty()) {
+            return primaryManager;
+        }
+        if (work.replicaManager == null) {
+            int index = Math.floorMod(nextReplica.getAndIncrement(), replicas.size());
+            work.replicaManager = replicas.get(index).createEntityManager();
+        }
+        return work.replicaManager;
+    }
+
+    /**
+     * Records that the current unit of work has written to the primary, so the
+     * rest of its reads also go to the primary. Does nothing outside a unit of
+     * work.
+     */
+    public void markWrite() {
+        UnitOfWork work = currentWork.get();
+        if (work != null) {
+            work.wrote = true;
+        }
+    }
+
+    /**
+     * Copy the contents of the primary into every replica. This is done
+     * automatically in local replication mode; it is only meant for databases
+     * that have no replication of their own.
+     */
+    public synchronized void syncReplicas() {
+        if (replicas.isEmpty()) {
+            return;
+        }
+        Path snapshot = null;
+        EntityManager em = primary.createEntityManager();
+        try {
+            snapshot = Files.createTempFile("sports-replica", ".snapshot");
+            DatabaseSnapshot.save(em, snapshot);
+            for (EntityManagerFactory replica : replicas) {
+                EntityManager replicaManager = replica.createEntityManager();
+                try {
+                    DatabaseSnapshot.restore(replicaManager, snapshot);
+                } finally {
+                    replicaManager.close();
+                }
+            }
+        } catch (IOException e) {
+            throw new PersistenceException("Could not copy the primary to the replicas", e);
+        } finally {
+            em.close();
+            if (snapshot != null) {
+                try {
+                    Files.deleteIfExists(snapshot);
+                } catch (IOException e) {
+                    // a leftover temporary file is harmless
+                }
+            }
+        }
+    }
+
+    /**
+     * Close the primary and all replica factories.
+     */
+    public void close() {
+        for (EntityManagerFactory replica : replicas) {
+            replica.close();
+        }
+        primary.close();
+    }
+
+    /**
+     * A thread-bound scope for read-your-writes routing.
+     */
+    public final class UnitOfWork implements AutoCloseable {
+
+        private EntityManager replicaManager;
+        private boolean wrote;
+
+        private UnitOfWork() {
+        }
+
+        /**
+         * @return whether this unit of work has written to the primary
+         */
+        public boolean hasWritten() {
+            return wrote;
+        }
+
+        /**
+         * Ends the unit of work. In local replication mode, a unit of work
+         * that wrote first copies the primary to the replicas.
+         */
+        @Override
+        public void close() {
+            if (replicaManager != null) {
+                replicaManager.close();
+                replicaManager = null;
+            }
+            if (currentWork.get() == this) {
+                currentWork.remove();
+            }
+            if (wrote && localReplication) {
+                wrote = false;
+                syncReplicas();
+            }
+        }
+    }
+}
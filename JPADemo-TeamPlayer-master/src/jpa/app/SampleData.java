@@ -0,0 +1,53 @@
+package jpa.app;
+
+import jpa.entities.Player;
+import jpa.entities.Team;
+
+/**
+ * The sample teams and players loaded by JPADemo. They are kept apart from
+ * JPADemo so that WorkloadDriver can load the same data, for replaying a
+ * command log recorded by JPADemo, without starting the demo itself.
+ */
+final class SampleData {
+
+    private SampleData() {
+    }
+
+    /**
+     * Creates the sample teams, the first two with their players.
+     *
+     * @return new transient Team objects, ready to be persisted
+     */
+    static Team[] teams() {
+        // teams is an array of Team objects, with players to be assigned below
+        Team[] teams = new Team[]{
+            new Team("Los Angeles Lakers", "West"),
+            new Team("Los Angeles Clippers", "West"),
+            new Team("Miami Heat", "East"),
+            new Team("Brooklyn Nets", "East"),
+            new Team("Oklahoma City Thunder", "West")
+        };
+
+        // Player objects that will all be assigned to the Los Angeles Lakers Team object
+        Player[] lakersPlayers = new Player[]{
+            new Player("Kobe", "Bryant", 24, "The Black Mamba"),
+            new Player("Steve", "Nash", 10, "Canadian wonder"),
+            new Player("Lin", "Jeremy", 7, "Linmania")
+        };
+
+        // Player objects that will all be assigned to the Los Angeles Clippers Team object
+        Player[] clippersPlayers = new Player[]{
+            new Player("Blake", "Griffin", 32, "The new Highlight Film"),
+            new Player("Jamal", "Crawford", 11, "It's raining three pointers"),
+            new Player("Chris", "Paul", 3, "The nonstop assist generator")
+        };
+
+        for (Player player : lakersPlayers) {
+            teams[0].addPlayer(player);  // addPlayer is responsible for setting a player's team
+        }
+        for (Player player : clippersPlayers) {
+            teams[1].addPlayer(player);
+        }
+        return teams;
+    }
+}
@@ -0,0 +1,198 @@
+package jpa.app;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.Parameter;
+import javax.persistence.Query;
+import javax.persistence.metamodel.EntityType;
+import org.eclipse.persistence.jpa.JpaEntityManager;
+import org.eclipse.persistence.jpa.JpaQuery;
+import org.eclipse.persistence.queries.DatabaseQuery;
+import org.eclipse.persistence.sessions.DatabaseRecord;
+
+/**
+ * Warms up a persistence unit before it serves requests. Every named query
+ * declared on an entity is compiled from JPQL to SQL, and those that take
+ * parameters are run once with values that match nothing so their JDBC
+ * statement lands in the statement cache (eclipselink.jdbc.cache-statements).
+ * Bulk deletes and updates are run inside a transaction that is rolled back.
+ * Queries without parameters, reads as well as bulk deletes, are only
+ * compiled, never run: with nothing to bind they would touch every row.
+ *
+ * The replicas of a ReadWriteRouter each compile and cache their own
+ * statements, so they are warmed up too; only read queries are run on them,
+ * since only reads are routed there. Readiness is signalled once every factory
+ * has been warmed up.
+ *
+ * Statements are cached per pooled connection, so only the connection used by
+ * the warm-up is pre-prepared. Entity weaving is done at build time (see
+ * build.xml) and is not part of the warm-up.
+ */
+public class WarmUp {
+
+    private static final Logger THE_LOGGER
+            = Logger.getLogger(WarmUp.class.getName());
+
+    /** Value bound to String parameters; no team or player has this name. */
+    private static final String NO_MATCH_STRING = "\u0000warm-up";
+
+    /** Value bound to numeric parameters; generated ids start at 1. */
+    private static final int NO_MATCH_ID = -1;
+
+    private final EntityManagerFactory emf;
+    private final List<EntityManagerFactory> replicas;
+    private final CountDownLatch ready = new CountDownLatch(1);
+
+    /**
+     * @param emf the factory whose named queries are to be warmed up
+     */
+    public WarmUp(EntityManagerFactory emf) {
+        this(emf, Collections.<EntityManagerFactory>emptyList());
+    }
+
+    /**
+     * @param emf the factory whose named queries are to be warmed up
+     * @param replicas read-only factories whose named read queries are to be warmed up too
+     */
+    public WarmUp(EntityManagerFactory emf, List<EntityManagerFactory> replicas) {
+        this.emf = emf;
+        this.replicas = replicas;
+    }
+
+    /**
+     * Compile and prepare every named query on the primary factory and the
+     * named read queries on the replicas, then signal readiness. A query that
+     * fails to warm up is logged and skipped; it will simply be prepared on
+     * first use.
+     */
+    public void run() {
+        long start = System.nanoTime();
+        List<String> names = namedQueries();
+        warmAll(emf, names, true);
+        for (EntityManagerFactory replica : replicas) {
+            warmAll(replica, names, false);
+        }
+        ready.countDown();
+        THE_LOGGER.log(Level.INFO, "Warmed up {0} named queries on {1} factories in {2} ms",
+                new Object[]{names.size(), 1 + replicas.size(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)});
+    }
+
+    private static void warmAll(EntityManagerFactory factory, List<String> names, boolean writable) {
+        for (String name : names) {
+            try {
+                warm(factory, name, writable);
+            } catch (RuntimeException e) {
+                THE_LOGGER.log(Level.WARNING, "Could not warm up query " + name, e);
+            }
+        }
+    }
+
+    /**
+     * @return true once the warm-up has finished
+     */
+    public boolean isReady() {
+        return ready.getCount() == 0;
+    }
+
+    /**
+     * Wait for the warm-up to finish.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return true if the warm-up finished, false if the time ran out
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+        return ready.await(timeout, unit);
+    }
+
+    /**
+     * Collects the names of the named queries declared on the entities of the
+     * persistence unit, so new queries are warmed up without being listed here.
+     */
+    private List<String> namedQueries() {
+        List<String> names = new ArrayList<>();
+        for (EntityType<?> entity : emf.getMetamodel().getEntities()) {
+            Class<?> type = entity.getJavaType();
+            List<NamedQuery> declared = new ArrayList<>();
+            if (type.isAnnotationPresent(NamedQueries.class)) {
+                declared.addAll(Arrays.asList(type.getAnnotation(NamedQueries.class).value()));
+            }
+            if (type.isAnnotationPresent(NamedQuery.class)) {
+                declared.add(type.getAnnotation(NamedQuery.class));
+            }
+            for (NamedQuery query : declared) {
+                names.add(query.name());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @param writable false for a replica, where bulk deletes and updates are only compiled
+     */
+    private static void warm(EntityManagerFactory factory, String name, boolean writable) {
+        EntityManager em = factory.createEntityManager();
+        try {
+            Query query = em.createNamedQuery(name);
+
+            // JPQL -> SQL, without touching the database
+            DatabaseQuery databaseQuery = query.unwrap(JpaQuery.class).getDatabaseQuery();
+            databaseQuery.prepareCall(em.unwrap(JpaEntityManager.class).getActiveSession(), new DatabaseRecord());
+
+            if (query.getParameters().isEmpty()) {
+                return;  // nothing to restrict it with: a full read or an unrestricted bulk delete
+            }
+            if (!writable && !databaseQuery.isReadQuery()) {
+                return;  // never sent to a replica
+            }
+            for (Parameter<?> parameter : query.getParameters()) {
+                if (!bindNoMatch(query, parameter)) {
+                    return;  // no safe value for this parameter, compiling will have to do
+                }
+            }
+
+            if (databaseQuery.isReadQuery()) {
+                query.getResultList();
+            } else {
+                em.getTransaction().begin();
+                try {
+                    query.executeUpdate();
+                } finally {
+                    em.getTransaction().rollback();
+                }
+            }
+            THE_LOGGER.log(Level.FINE, "Warmed up query {0}", name);
+        } finally {
+            em.close();
+        }
+    }
+
+    private static boolean bindNoMatch(Query query, Parameter<?> parameter) {
+        Class<?> type = parameter.getParameterType();
+        Object value;
+        if (type == null || type == String.class) {
+            value = NO_MATCH_STRING;
+        } else if (type == Integer.class || type == int.class) {
+            value = NO_MATCH_ID;
+        } else if (Collection.class.isAssignableFrom(type)) {
+            value = Collections.nCopies(IdChunks.SIZE, NO_MATCH_ID);  // an "IN :ids" list, as IdChunks sends it
+        } else {
+            return false;
+        }
+        query.setParameter(parameter.getName(), value);
+        return true;
+    }
+}
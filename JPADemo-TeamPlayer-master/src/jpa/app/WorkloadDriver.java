@@ -0,0 +1,417 @@
+package jpa.app;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+import jpa.entities.Player;
+import jpa.entities.Team;
+
+/**
+ * Load generator for the JPADemo command set. It loads a synthetic league of
+ * configurable size and then either runs a weighted random mix of the menu
+ * operations or replays a log recorded by JPADemo (see CommandLog). Requests
+ * arrive open-loop at a fixed rate and are served by a pool of threads, each
+ * with its own EntityManager. Latency is measured from when a request was due
+ * to arrive, so time spent queued behind slow requests is included. Requests
+ * are admitted through an AdmissionController configured like JPADemo's.
+ *
+ * Arrivals are never dropped by the driver: the pool's queue is unbounded, so
+ * requests keep arriving on schedule however far behind the threads fall.
+ * Shedding load is the admission controller's job; run more threads than its
+ * limits to see it reject requests. Only admitted requests count towards
+ * throughput and latency. Requests that were rejected or failed are reported
+ * as failures of the run, and the driver then exits with status 1.
+ *
+ * Usage:
+ * <pre>
+ * java jpa.app.WorkloadDriver [--teams 30] [--players 15] [--threads 8]
+ *     [--rate 100] [--duration 30] [--seed 1]
+ *     [--mix roster=50,find=30,remove_player=10,remove_team=5,reload=5]
+ *     [--replay commands.log] [--speed 1.0]
+ * </pre>
+ * The database is chosen with the same system properties as JPADemo (see
+ * ReadWriteRouter). A replayed log runs against JPADemo's sample data (see
+ * SampleData) rather than the synthetic league, so the recorded team and player
+ * names match.
+ */
+public class WorkloadDriver {
+
+    private static final Logger THE_LOGGER
+            = Logger.getLogger(WorkloadDriver.class.getName());
+
+    /** The JPADemo menu operations the driver can run. */
+    private static final String[] OPERATIONS = {"roster", "find", "remove player", "remove team", "reload"};
+
+    private static final String DEFAULT_MIX = "roster=50,find=30,remove_player=10,remove_team=5,reload=5";
+
+    private final ReadWriteRouter router;
+    private final AdmissionController admission;
+    private final int teams;
+    private final int playersPerTeam;
+
+    private final List<EntityManager> managers = Collections.synchronizedList(new ArrayList<EntityManager>());
+    private final ThreadLocal<EntityManager> threadManager;
+    private final Map<String, LatencyHistogram> latencies = new LinkedHashMap<>();
+    private final Map<String, AtomicLong> errors = new LinkedHashMap<>();
+    private final Map<String, AtomicLong> rejections = new LinkedHashMap<>();
+    private final AtomicLong arrived = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private volatile boolean sampleData;
+
+    /**
+     * @param router where the operations are sent
+     * @param admission decides which operations run and for how long
+     * @param teams number of teams in the synthetic league
+     * @param playersPerTeam number of players on each team
+     */
+    public WorkloadDriver(ReadWriteRouter router, AdmissionController admission, int teams, int playersPerTeam) {
+        this.router = router;
+        this.admission = admission;
+        this.teams = teams;
+        this.playersPerTeam = playersPerTeam;
+        threadManager = ThreadLocal.withInitial(() -> {
+            EntityManager em = router.getPrimary().createEntityManager();
+            managers.add(em);
+            return em;
+        });
+        for (String operation : OPERATIONS) {
+            latencies.put(operation, new LatencyHistogram());
+            errors.put(operation, new AtomicLong());
+            rejections.put(operation, new AtomicLong());
+        }
+    }
+
+    /**
+     * Runs the driver.
+     *
+     * @param args options as described in the class comment
+     * @throws Exception if the replay log cannot be read or the run is interrupted
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int threads = Integer.parseInt(options.getOrDefault("threads", "8"));
+        double rate = Double.parseDouble(options.getOrDefault("rate", "100"));
+
+        ReadWriteRouter router = ReadWriteRouter.fromSystemProperties("SportsPU");
+        AdmissionController admission = AdmissionController.fromSystemProperties();
+        admission.limitLockWaits(router.getPrimary());
+        WorkloadDriver driver = new WorkloadDriver(router, admission,
+                Integer.parseInt(options.getOrDefault("teams", "30")),
+                Integer.parseInt(options.getOrDefault("players", "15")));
+        long failed;
+        try {
+            if (options.containsKey("replay")) {
+                driver.useSampleData();
+            }
+            driver.execute("reload", Collections.<String>emptyList());
+
+            long elapsed;
+            if (options.containsKey("replay")) {
+                elapsed = driver.replay(CommandLog.read(Paths.get(options.get("replay"))), threads,
+                        Double.parseDouble(options.getOrDefault("speed", "1.0")));
+            } else {
+                elapsed = driver.generate(parseMix(options.getOrDefault("mix", DEFAULT_MIX)), rate,
+                        Long.parseLong(options.getOrDefault("duration", "30")), threads,
+                        new Random(Long.parseLong(options.getOrDefault("seed", "1"))));
+            }
+            failed = driver.report(elapsed);
+        } finally {
+            driver.close();
+            router.close();
+        }
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i += 2) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException("Expected --option value, got " + Arrays.toString(args));
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        return options;
+    }
+
+    /**
+     * Parses "roster=50,remove_player=10" into operation weights; underscores
+     * stand for the spaces in the menu choices.
+     */
+    private static Map<String, Integer> parseMix(String mix) {
+        Map<String, Integer> weights = new LinkedHashMap<>();
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.split("=");
+            String operation = parts[0].trim().replace('_', ' ');
+            if (!Arrays.asList(OPERATIONS).contains(operation) || parts.length != 2) {
+                throw new IllegalArgumentException("Bad mix entry: " + entry);
+            }
+            weights.put(operation, Integer.parseInt(parts[1].trim()));
+        }
+        return weights;
+    }
+
+    /**
+     * Runs a weighted random mix of operations at a fixed arrival rate.
+     *
+     * @return the elapsed time in nanoseconds
+     */
+    long generate(Map<String, Integer> mix, double rate, long durationSeconds, int threads, Random random)
+            throws InterruptedException {
+        int totalWeight = 0;
+        for (int weight : mix.values()) {
+            totalWeight += weight;
+        }
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long arrivals = (long) (rate * durationSeconds);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        for (long k = 0; k < arrivals; k++) {
+            int pick = random.nextInt(totalWeight);
+            String operation = null;
+            for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+                pick -= entry.getValue();
+                if (pick < 0) {
+                    operation = entry.getKey();
+                    break;
+                }
+            }
+            submit(pool, start + k * interval, operation, randomArgs(operation, random));
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Replays recorded commands at their recorded times, scaled by speed.
+     *
+     * @return the elapsed time in nanoseconds
+     */
+    long replay(List<CommandLog.Command> commands, int threads, double speed) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        long firstOffset = commands.isEmpty() ? 0 : commands.get(0).getOffsetMillis();
+        for (CommandLog.Command command : commands) {
+            if (!latencies.containsKey(command.getName())) {
+                skipped.incrementAndGet();
+                continue;
+            }
+            long due = start + (long) (TimeUnit.MILLISECONDS.toNanos(command.getOffsetMillis() - firstOffset) / speed);
+            submit(pool, due, command.getName(), command.getArgs());
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        return System.nanoTime() - start;
+    }
+
+    private List<String> randomArgs(String operation, Random random) {
+        int team = random.nextInt(teams);
+        switch (operation) {
+            case "roster":
+            case "remove team":
+                return Collections.singletonList(teamName(team));
+            case "remove player":
+                return Arrays.asList(firstName(random.nextInt(playersPerTeam)), lastName(team));
+            default:
+                return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Waits until a request is due, then hands it to the pool. The latency
+     * clock starts at the due time, not when a thread picks it up, and only
+     * runs for admitted requests.
+     */
+    private void submit(ExecutorService pool, long due, String operation, List<String> args) {
+        long wait = due - System.nanoTime();
+        if (wait > 0) {
+            LockSupport.parkNanos(wait);
+        }
+        arrived.incrementAndGet();
+        pool.execute(() -> serve(due, operation, args));
+    }
+
+    private void serve(long due, String operation, List<String> args) {
+        try {
+            execute(operation, args);
+        } catch (AdmissionController.RejectedException e) {
+            rejections.get(operation).incrementAndGet();
+            return;  // shed, so not part of the latency of the requests served
+        } catch (RuntimeException e) {
+            errors.get(operation).incrementAndGet();
+            THE_LOGGER.log(Level.FINE, "Operation " + operation + " failed", e);
+            EntityTransaction tx = threadManager.get().getTransaction();
+            if (tx.isActive()) {
+                tx.rollback();
+            }
+        }
+        latencies.get(operation).record(System.nanoTime() - due);
+    }
+
+    /**
+     * Runs one operation the way the matching JPADemo menu choice does.
+     *
+     * @param operation one of the menu choices in OPERATIONS
+     * @param args the values the user would have entered
+     */
+    void execute(String operation, List<String> args) {
+        EntityManager em = threadManager.get();
+        try (ReadWriteRouter.UnitOfWork work = router.begin();
+                AdmissionController.Permit permit = admission.admit(AdmissionController.kindOf(operation))) {
+            switch (operation) {
+                case "roster":
+                    admission.withTimeout(router.forRead(em).createNamedQuery(Player.GET_PLAYER_LIST, Player.class))
+                            .setParameter("name", args.get(0))
+                            .getResultList();
+                    break;
+                case "find":
+                    EntityManager reader = router.forRead(em);
+                    for (int primaryKey = 1; primaryKey <= 10; primaryKey++) {
+                        admission.checkpoint();
+                        if (reader.find(Player.class, primaryKey) == null) {
+                            break;
+                        }
+                    }
+                    break;
+                case "remove player":
+                    inTransaction(em, () -> admission.withTimeout(em.createNamedQuery(Player.DELETE_BY_NAME))
+                            .setParameter("firstName", args.get(0))
+                            .setParameter("lastName", args.get(1))
+                            .executeUpdate());
+                    break;
+                case "remove team":
+                    inTransaction(em, () -> admission.withTimeout(em.createNamedQuery(Team.DELETE_BY_NAME))
+                            .setParameter("name", args.get(0))
+                            .executeUpdate());
+                    break;
+                case "reload":
+                    inTransaction(em, () -> {
+                        admission.withTimeout(em.createNamedQuery(Player.DELETE_ALL)).executeUpdate();
+                        admission.withTimeout(em.createNamedQuery(Team.DELETE_ALL)).executeUpdate();
+                        for (Team team : league()) {
+                            admission.checkpoint();
+                            em.persist(team);
+                        }
+                    });
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown operation " + operation);
+            }
+        } finally {
+            em.clear();  // don't let the persistence context grow over the run
+        }
+    }
+
+    private void inTransaction(EntityManager em, Runnable work) {
+        router.markWrite();
+        em.getTransaction().begin();
+        work.run();
+        admission.checkpoint();
+        em.getTransaction().commit();
+    }
+
+    /**
+     * Makes reload load JPADemo's sample data instead of the synthetic league.
+     */
+    void useSampleData() {
+        sampleData = true;
+    }
+
+    private List<Team> league() {
+        if (sampleData) {
+            return Arrays.asList(SampleData.teams());
+        }
+        List<Team> league = new ArrayList<>();
+        for (int t = 0; t < teams; t++) {
+            Team team = new Team(teamName(t), t % 2 == 0 ? "West" : "East");
+            for (int p = 0; p < playersPerTeam; p++) {
+                team.addPlayer(new Player(firstName(p), lastName(t), p, null));
+            }
+            league.add(team);
+        }
+        return league;
+    }
+
+    private static String teamName(int team) {
+        return "Team " + team;
+    }
+
+    private static String firstName(int player) {
+        return "Player" + player;
+    }
+
+    private static String lastName(int team) {
+        return "Of Team" + team;
+    }
+
+    /**
+     * Print the requests that failed, throughput, latency percentiles and
+     * histograms of the admitted requests per operation, the requests rejected
+     * by the admission controller, and the counters of the admission controller.
+     *
+     * @param elapsedNanos length of the run
+     * @return the number of requests that were rejected or failed
+     */
+    long report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("Run time %.1f s%s%n", seconds,
+                skipped.get() > 0 ? ", skipped " + skipped.get() + " unsupported commands" : "");
+        long failed = 0;
+        for (String operation : OPERATIONS) {
+            failed += errors.get(operation).get() + rejections.get(operation).get();
+        }
+        System.out.printf("%d requests, %d failed (%.1f%%, rejected or errors)%n", arrived.get(), failed,
+                arrived.get() == 0 ? 0.0 : 100.0 * failed / arrived.get());
+        System.out.printf("%-14s %8s %7s %8s %9s %9s %9s %9s %9s%n", "operation", "admitted", "errors",
+                "rejected", "ops/s", "p50 us", "p90 us", "p99 us", "max us");
+        for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            System.out.printf("%-14s %8d %7d %8d %9.1f %9d %9d %9d %9d%n", entry.getKey(),
+                    histogram.getCount(), errors.get(entry.getKey()).get(),
+                    rejections.get(entry.getKey()).get(),
+                    histogram.getCount() / seconds,
+                    histogram.getPercentile(0.50), histogram.getPercentile(0.90),
+                    histogram.getPercentile(0.99), histogram.getMax());
+        }
+        System.out.println();
+        admission.print(System.out);
+        for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+            if (entry.getValue().getCount() > 0) {
+                System.out.println();
+                System.out.println(entry.getKey() + " latency histogram:");
+                entry.getValue().print(System.out);
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Close the EntityManagers opened by the worker threads.
+     */
+    void close() {
+        synchronized (managers) {
+            for (EntityManager em : managers) {
+                em.close();
+            }
+            managers.clear();
+        }
+    }
+}
@@ -0,0 +1,651 @@
+package jpa.app;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import jpa.entities.Player;
+import jpa.entities.Team;
+
+/**
+ * A write-behind buffer for updates to Player and Team entities that already
+ * exist in the database. Writes are held in memory keyed by entity type and id,
+ * so a burst of updates to the same entity collapses into the last one. The
+ * buffer is written out in a single transaction when it reaches a size limit,
+ * when the flush interval elapses, or when {@link #flush()} is called.
+ *
+ * The state of an entity is copied when it is queued, so the caller may go
+ * on changing the entity; later changes are only written if it is queued
+ * again. Updates are applied to the entity as found in the database, and are
+ * dropped if it no longer exists. Once a removal is queued, updates to the
+ * removed entity (and, for a Team, to its players) are dropped as well, until
+ * the removal has been committed; from then on an update finds no row to
+ * apply to, and an entity that reuses the id is written normally.
+ *
+ * If the flush transaction fails, each write is retried in a transaction of
+ * its own, so one bad write can't hold back the others. A write that keeps
+ * failing is given up after MAX_ATTEMPTS flushes and kept in
+ * {@link #getDeadLetters()}.
+ *
+ * Buffered writes are lost if the JVM dies before a flush; pass
+ * flushOnShutdown to have a shutdown hook write out whatever is pending on a
+ * normal exit.
+ */
+public class WriteBehindQueue implements AutoCloseable {
+
+    private static final Logger THE_LOGGER
+            = Logger.getLogger(WriteBehindQueue.class.getName());
+
+    /** Flushes a write may fail in before it is moved to the dead letters. */
+    public static final int MAX_ATTEMPTS = 3;
+
+    private final EntityManagerFactory emf;
+    private final int maxPending;
+    private final ScheduledExecutorService flusher;
+    private final Thread shutdownHook;
+
+    // Insertion-ordered so that a flush applies writes in the order entities were first touched
+    private final Map<Key, PendingWrite> pending = new LinkedHashMap<>();
+    // Entities whose removal is queued but not yet committed; guarded by pending like the rest of the queue state
+    private final Set<Key> removed = new HashSet<>();
+    private final List<DeadLetter> deadLetters = new ArrayList<>();
+    private final Object flushLock = new Object();
+    private boolean closed;
+
+    private final AtomicLong writesQueued = new AtomicLong();
+    private final AtomicLong writesCoalesced = new AtomicLong();
+    private final AtomicLong writesFlushed = new AtomicLong();
+    private final AtomicLong writesDropped = new AtomicLong();
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong flushFailures = new AtomicLong();
+    private volatile long lastFlushLagMillis;
+    private volatile long maxFlushLagMillis;
+
+    /**
+     * Creates a write-behind queue writing through the given factory.
+     *
+     * @param emf the factory used to obtain an EntityManager for each flush
+     * @param maxPending number of distinct pending entities that triggers a flush
+     * @param flushIntervalMillis the longest a write waits before being flushed
+     * @param flushOnShutdown whether to flush pending writes when the JVM exits
+     */
+    public WriteBehindQueue(EntityManagerFactory emf, int maxPending, long flushIntervalMillis,
+            boolean flushOnShutdown) {
+        if (maxPending < 1 || flushIntervalMillis < 1) {
+            throw new IllegalArgumentException("maxPending and flushIntervalMillis must be positive");
+        }
+        this.emf = emf;
+        this.maxPending = maxPending;
+
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "write-behind-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly,
+                flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+
+        if (flushOnShutdown) {
+            shutdownHook = new Thread(this::close, "write-behind-shutdown");
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+        } else {
+            shutdownHook = null;
+        }
+    }
+
+    /**
+     * Queue the current state of a Player to be written to the database: its
+     * name, jersey number, quote and team.
+     *
+     * @param player a Player that has already been persisted
+     */
+    public void update(Player player) {
+        enqueue(new Key(Player.class, player.getId()), new PlayerUpdate(player), null);
+    }
+
+    /**
+     * Queue the current name and league of a Team to be written to the
+     * database. Changes to its roster are written by queuing the players.
+     *
+     * @param team a Team that has already been persisted
+     */
+    public void update(Team team) {
+        enqueue(new Key(Team.class, team.getId()), new TeamUpdate(team), null);
+    }
+
+    /**
+     * Queue the removal of a Player. Any update pending or queued later for
+     * the same Player is discarded.
+     *
+     * @param player a Player that has already been persisted
+     */
+    public void remove(Player player) {
+        Key key = new Key(Player.class, player.getId());
+        Set<Key> players = Collections.emptySet();
+        enqueue(key, new Removal(key, players), players);
+    }
+
+    /**
+     * Queue the removal of a Team and its players. Any update pending or
+     * queued later for the Team or its players is discarded.
+     *
+     * @param team a Team that has already been persisted
+     */
+    public void remove(Team team) {
+        Key key = new Key(Team.class, team.getId());
+        Set<Key> players = new HashSet<>();
+        for (Player player : team.getRoster()) {
+            if (player.getId() != null) {
+                players.add(new Key(Player.class, player.getId()));
+            }
+        }
+        enqueue(key, new Removal(key, players), players);
+    }
+
+    /**
+     * @param removedPlayers for a removal, the players removed with it; null for an update
+     */
+    private void enqueue(Key key, Write write, Set<Key> removedPlayers) {
+        if (key.id == null) {
+            throw new IllegalArgumentException("Only persisted entities can be queued: " + key);
+        }
+        boolean full;
+        synchronized (pending) {
+            if (closed) {
+                throw new IllegalStateException("WriteBehindQueue is closed");
+            }
+            if (removedPlayers == null && isRemoved(key, write)) {
+                writesDropped.incrementAndGet();
+                return;
+            }
+            if (removedPlayers != null) {
+                removed.add(key);
+                removed.addAll(removedPlayers);
+                dropUpdatesOfRemoved();
+            }
+            PendingWrite previous = pending.get(key);
+            if (previous == null) {
+                pending.put(key, new PendingWrite(write, System.nanoTime()));
+            } else {
+                // Last write wins, but the lag is measured from the first write still waiting
+                pending.put(key, new PendingWrite(write, previous.queuedAt));
+                writesCoalesced.incrementAndGet();
+            }
+            full = pending.size() >= maxPending;
+        }
+        writesQueued.incrementAndGet();
+
+        if (full) {
+            flusher.execute(this::flushQuietly);
+        }
+    }
+
+    private boolean isRemoved(Key key, Write write) {
+        if (removed.contains(key)) {
+            return true;
+        }
+        Integer teamId = write instanceof PlayerUpdate ? ((PlayerUpdate) write).teamId : null;
+        return teamId != null && removed.contains(new Key(Team.class, teamId));
+    }
+
+    /**
+     * Forget the removals of a committed transaction, unless the same entity
+     * has been removed again and that removal is still pending.
+     */
+    private void forgetRemoved(List<Removal> committed) {
+        synchronized (pending) {
+            for (Removal removal : committed) {
+                forgetRemoved(removal.key);
+                for (Key player : removal.players) {
+                    forgetRemoved(player);
+                }
+            }
+        }
+    }
+
+    private void forgetRemoved(Key key) {
+        PendingWrite queued = pending.get(key);
+        if (queued == null || !(queued.write instanceof Removal)) {
+            removed.remove(key);
+        }
+    }
+
+    private void dropUpdatesOfRemoved() {
+        Iterator<Map.Entry<Key, PendingWrite>> entries = pending.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Key, PendingWrite> entry = entries.next();
+            Write write = entry.getValue().write;
+            if (!(write instanceof Removal) && isRemoved(entry.getKey(), write)) {
+                entries.remove();
+                writesDropped.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Write every pending update and removal in one transaction. If the
+     * transaction fails, each write is retried in a transaction of its own;
+     * writes that fail again are put back, unless a newer write for the same
+     * entity has been queued in the meantime, or moved to the dead letters
+     * once they have failed MAX_ATTEMPTS times.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            Map<Key, PendingWrite> batch;
+            synchronized (pending) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = new LinkedHashMap<>(pending);
+                pending.clear();
+            }
+
+            long oldest = Long.MAX_VALUE;
+            for (PendingWrite write : batch.values()) {
+                oldest = Math.min(oldest, write.queuedAt);
+            }
+
+            int written;
+            try {
+                written = write(batch.values());
+            } catch (RuntimeException e) {
+                flushFailures.incrementAndGet();
+                THE_LOGGER.log(Level.WARNING, "Write-behind flush failed, retrying its writes one by one", e);
+                written = writeOneByOne(batch);
+            }
+
+            long lag = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest);
+            lastFlushLagMillis = lag;
+            maxFlushLagMillis = Math.max(maxFlushLagMillis, lag);
+            writesFlushed.addAndGet(written);
+            flushCount.incrementAndGet();
+            THE_LOGGER.log(Level.FINE, "Flushed {0} writes, lag {1} ms", new Object[]{written, lag});
+        }
+    }
+
+    /**
+     * Apply writes in one transaction.
+     *
+     * @return the number of writes applied; the rest were for entities no longer in the database
+     */
+    private int write(Collection<PendingWrite> writes) {
+        int written = 0;
+        List<Removal> removals = new ArrayList<>();
+        EntityManager em = emf.createEntityManager();
+        EntityTransaction tx = em.getTransaction();
+        try {
+            tx.begin();
+            for (PendingWrite write : writes) {
+                if (write.write.apply(em)) {
+                    written++;
+                } else {
+                    writesDropped.incrementAndGet();
+                }
+                if (write.write instanceof Removal) {
+                    removals.add((Removal) write.write);
+                }
+            }
+            tx.commit();
+        } finally {
+            if (tx.isActive()) {
+                tx.rollback();
+            }
+            em.close();
+        }
+        // Player writes change rosters, which the shared cache holds on the Team side
+        emf.getCache().evict(Team.class);
+        forgetRemoved(removals);
+        return written;
+    }
+
+    private int writeOneByOne(Map<Key, PendingWrite> batch) {
+        int written = 0;
+        Map<Key, PendingWrite> failed = new LinkedHashMap<>();
+        for (Map.Entry<Key, PendingWrite> entry : batch.entrySet()) {
+            PendingWrite write = entry.getValue();
+            try {
+                written += write(Collections.singletonList(write));
+            } catch (RuntimeException e) {
+                PendingWrite retry = write.failed();
+                if (retry.attempts < MAX_ATTEMPTS) {
+                    failed.put(entry.getKey(), retry);
+                } else {
+                    THE_LOGGER.log(Level.SEVERE, "Giving up on write to " + entry.getKey(), e);
+                    synchronized (pending) {
+                        deadLetters.add(new DeadLetter(entry.getKey().type, entry.getKey().id, e));
+                    }
+                }
+            }
+        }
+        requeue(failed);
+        return written;
+    }
+
+    private void requeue(Map<Key, PendingWrite> failed) {
+        synchronized (pending) {
+            List<Map.Entry<Key, PendingWrite>> newer = new ArrayList<>(pending.entrySet());
+            pending.clear();
+            pending.putAll(failed);
+            for (Map.Entry<Key, PendingWrite> entry : newer) {
+                pending.put(entry.getKey(), entry.getValue());
+            }
+            dropUpdatesOfRemoved();
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            THE_LOGGER.log(Level.WARNING, "Write-behind flush failed", e);
+        }
+    }
+
+    /**
+     * Stop the flush timer and write out anything still pending.
+     */
+    @Override
+    public void close() {
+        synchronized (pending) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+
+        if (shutdownHook != null && Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // already shutting down, the hook is running or about to
+            }
+        }
+    }
+
+    /**
+     * @return the number of distinct entities waiting to be flushed
+     */
+    public int getPendingCount() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * @return the total number of writes accepted by this queue
+     */
+    public long getWritesQueued() {
+        return writesQueued.get();
+    }
+
+    /**
+     * @return the number of writes that replaced an earlier pending write for the same entity
+     */
+    public long getWritesCoalesced() {
+        return writesCoalesced.get();
+    }
+
+    /**
+     * @return the number of entity writes committed to the database
+     */
+    public long getWritesFlushed() {
+        return writesFlushed.get();
+    }
+
+    /**
+     * @return the number of updates dropped because their entity was removed
+     */
+    public long getWritesDropped() {
+        return writesDropped.get();
+    }
+
+    /**
+     * @return the number of flushes
+     */
+    public long getFlushCount() {
+        return flushCount.get();
+    }
+
+    /**
+     * @return the number of flush transactions that were rolled back and retried one write at a time
+     */
+    public long getFlushFailures() {
+        return flushFailures.get();
+    }
+
+    /**
+     * @return the writes given up on after failing MAX_ATTEMPTS times
+     */
+    public List<DeadLetter> getDeadLetters() {
+        synchronized (pending) {
+            return new ArrayList<>(deadLetters);
+        }
+    }
+
+    /**
+     * @return time between the oldest write in the last flush being queued and its commit
+     */
+    public long getLastFlushLagMillis() {
+        return lastFlushLagMillis;
+    }
+
+    /**
+     * @return the largest flush lag seen so far
+     */
+    public long getMaxFlushLagMillis() {
+        return maxFlushLagMillis;
+    }
+
+    /**
+     * Identifies a pending write by entity type and primary key.
+     */
+    private static final class Key {
+
+        private final Class<?> type;
+        private final Integer id;
+
+        Key(Class<?> type, Integer id) {
+            this.type = type;
+            this.id = id;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * type.hashCode() + (id != null ? id.hashCode() : 0);
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) object;
+            return type == other.type && id != null && id.equals(other.id);
+        }
+
+        @Override
+        public String toString() {
+            return type.getSimpleName() + " " + id;
+        }
+    }
+
+    /**
+     * The latest write queued for one entity.
+     */
+    private static final class PendingWrite {
+
+        private final Write write;
+        private final long queuedAt;
+        private final int attempts;
+
+        PendingWrite(Write write, long queuedAt) {
+            this(write, queuedAt, 0);
+        }
+
+        private PendingWrite(Write write, long queuedAt, int attempts) {
+            this.write = write;
+            this.queuedAt = queuedAt;
+            this.attempts = attempts;
+        }
+
+        PendingWrite failed() {
+            return new PendingWrite(write, queuedAt, attempts + 1);
+        }
+    }
+
+    /**
+     * A copy of the state to be written for one entity.
+     */
+    private interface Write {
+
+        /**
+         * @return false if the entity is no longer in the database
+         */
+        boolean apply(EntityManager em);
+    }
+
+    private static final class PlayerUpdate implements Write {
+
+        private final Integer id;
+        private final String firstName;
+        private final String lastName;
+        private final int jerseyNumber;
+        private final String quote;
+        private final Integer teamId;
+
+        PlayerUpdate(Player player) {
+            id = player.getId();
+            firstName = player.getFirstName();
+            lastName = player.getLastName();
+            jerseyNumber = player.getJerseyNumber();
+            quote = player.getLastSpokenWords();
+            teamId = player.getTeam() != null ? player.getTeam().getId() : null;
+        }
+
+        @Override
+        public boolean apply(EntityManager em) {
+            Player managed = em.find(Player.class, id);
+            Team team = teamId != null ? em.find(Team.class, teamId) : null;
+            if (managed == null || (teamId != null && team == null)) {
+                return false;
+            }
+            managed.setName(firstName, lastName);
+            managed.setJerseyNumber(jerseyNumber);
+            managed.setLastSpokenWords(quote);
+            managed.setTeam(team);
+            return true;
+        }
+    }
+
+    private static final class TeamUpdate implements Write {
+
+        private final Integer id;
+        private final String teamName;
+        private final String league;
+
+        TeamUpdate(Team team) {
+            id = team.getId();
+            teamName = team.getTeamName();
+            league = team.getLeague();
+        }
+
+        @Override
+        public boolean apply(EntityManager em) {
+            Team managed = em.find(Team.class, id);
+            if (managed == null) {
+                return false;
+            }
+            managed.setTeamName(teamName);
+            managed.setLeague(league);
+            return true;
+        }
+    }
+
+    private static final class Removal implements Write {
+
+        private final Key key;
+        private final Set<Key> players;
+
+        /**
+         * @param players for a Team, its players, which the removal deletes as well
+         */
+        Removal(Key key, Set<Key> players) {
+            this.key = key;
+            this.players = players;
+        }
+
+        @Override
+        public boolean apply(EntityManager em) {
+            Object managed = em.find(key.type, key.id);
+            if (managed == null) {
+                return false;
+            }
+            if (managed instanceof Team) {
+                // Team.roster relies on ON DELETE CASCADE, which not every EclipseLink version generates
+                em.createNamedQuery(Player.DELETE_BY_TEAM)
+                        .setParameter("team", managed)
+                        .executeUpdate();
+            }
+            em.remove(managed);
+            return true;
+        }
+    }
+
+    /**
+     * A write that was given up on.
+     */
+    public static final class DeadLetter {
+
+        private final Class<?> entityType;
+        private final Integer id;
+        private final RuntimeException error;
+
+        DeadLetter(Class<?> entityType, Integer id, RuntimeException error) {
+            this.entityType = entityType;
+            this.id = id;
+            this.error = error;
+        }
+
+        /**
+         * @return Player.class or Team.class
+         */
+        public Class<?> getEntityType() {
+            return entityType;
+        }
+
+        /**
+         * @return the id of the entity
+         */
+        public Integer getId() {
+            return id;
+        }
+
+        /**
+         * @return why the last attempt failed
+         */
+        public RuntimeException getError() {
+            return error;
+        }
+    }
+}
@@ -14,16 +14,18 @@
 package jpa.entities;
 
 import java.io.Serializable;
+import javax.persistence.Basic;
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.JoinColumn;
+import javax.persistence.Lob;
 import javax.persistence.ManyToOne;
 import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
-import javax.persistence.Transient;
 
 /**
  * Entity class Player
@@ -35,7 +37,14 @@ import javax.persistence.Transient;
 @NamedQueries({
     @NamedQuery(name=Player.DELETE_ALL, query="DELETE FROM Player p"),
     @NamedQuery(name = Player.GET_PLAYER_LIST, query = "SELECT p FROM Player p JOIN p.team t WHERE t.teamName = :name"),
-    @NamedQuery(name = Player.DELETE_BY_NAME, query = "DELETE FROM Player p WHERE p.firstName = :firstName AND p.lastName = :lastName")
+    @NamedQuery(name = Player.DELETE_BY_NAME, query = "DELETE FROM Player p WHERE p.firstName = :firstName AND p.lastName = :lastName"),
+    @NamedQuery(name = Player.DELETE_BY_TEAM, query = "DELETE FROM Player p WHERE p.team = :team"),
+    @NamedQuery(name = Player.GET_BY_IDS, query = "SELECT p FROM Player p WHERE p.id IN :ids"),
+    @NamedQuery(name = Player.GET_QUOTES, query = "SELECT p.id, p.quote FROM Player p WHERE p.id IN :ids"),
+    @NamedQuery(name = Player.GET_SEARCH_NAMES, query = "SELECT p.id, p.firstName, p.lastName, t.teamName FROM Player p JOIN p.team t ORDER BY p.id"),
+    @NamedQuery(name = Player.GET_TEAM_IDS, query = "SELECT DISTINCT p.team.id FROM Player p WHERE p.id IN :ids"),
+    @NamedQuery(name = Player.TRANSFER_BY_IDS, query = "UPDATE Player p SET p.team = :team WHERE p.id IN :ids"),
+    @NamedQuery(name = Player.TRANSFER_ROSTER, query = "UPDATE Player p SET p.team = :to WHERE p.team = :from")
 })
 public class Player implements Serializable {
     
@@ -48,6 +57,27 @@ public class Player implements Serializable {
     /** JPQL query String to delete a player given his or her name. */
     public static final String DELETE_BY_NAME = "Player.delete_name";
 
+    /** JPQL query String to delete every player of a team. */
+    public static final String DELETE_BY_TEAM = "Player.delete_by_team";
+
+    /** JPQL query String to retrieve the players with the given ids. */
+    public static final String GET_BY_IDS = "Player.get_by_ids";
+
+    /** JPQL query String to retrieve the id and quote of the players with the given ids. */
+    public static final String GET_QUOTES = "Player.get_quotes";
+
+    /** JPQL query String to retrieve the names of every player and team, for NameSearchIndex. */
+    public static final String GET_SEARCH_NAMES = "Player.get_search_names";
+
+    /** JPQL query String to retrieve the ids of the teams of the given players. */
+    public static final String GET_TEAM_IDS = "Player.get_team_ids";
+
+    /** JPQL query String to move the given players to a team in one UPDATE. */
+    public static final String TRANSFER_BY_IDS = "Player.transfer_by_ids";
+
+    /** JPQL query String to move every player of one team to another in one UPDATE. */
+    public static final String TRANSFER_ROSTER = "Player.transfer_roster";
+
   @Id
   @GeneratedValue(strategy = GenerationType.IDENTITY)
   private Integer id;
@@ -56,7 +86,8 @@ public class Player implements Serializable {
   @Column(name = "last_name", length = 50, nullable = false)
   private String lastName;
   private int jerseyNumber;
-  @Transient
+  @Lob
+  @Basic(fetch = FetchType.LAZY)  // lazy basics need weaving, done at build time (see build.xml)
   private String quote;
 
   @ManyToOne            // this element does not work in EclipseLink, though it's in the JPA spec: (optional = false)
@@ -167,9 +198,9 @@ public class Player implements Serializable {
   }
 
   /**
-   * Access the last spoken words of this Player; this is a transient property,
-   * that is, it's a property that does not persist so it is annotated as
-   * Transient.
+   * Access the last spoken words of this Player. They are stored as a LOB and
+   * are not read with the rest of the Player, only when this is first called;
+   * use PlayerQuotes to read the quotes of many players at once.
    *
    * @return the words spoken last by this Player
    */
@@ -0,0 +1,115 @@
+package jpa.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class AdmissionControllerTest {
+
+    @Test
+    public void menuChoicesAreClassified() {
+        assertEquals(AdmissionController.Kind.HEAVY, AdmissionController.kindOf("reload"));
+        assertEquals(AdmissionController.Kind.HEAVY, AdmissionController.kindOf("Remove Team"));
+        assertEquals(AdmissionController.Kind.LIGHT, AdmissionController.kindOf("roster"));
+        assertEquals(AdmissionController.Kind.LIGHT, AdmissionController.kindOf("search"));
+    }
+
+    @Test
+    public void rejectsAtOnceWhenTheQueueIsFull() throws Exception {
+        AdmissionController admission = new AdmissionController(1, 1, 1, 10000, 10000, 10000);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = holdPermit(admission, release);
+        Thread waiter = new Thread(() -> admission.admit(AdmissionController.Kind.LIGHT).close());
+        waiter.start();
+        while (admission.getQueueDepth(AdmissionController.Kind.LIGHT) < 1) {
+            Thread.sleep(1);
+        }
+
+        long start = System.nanoTime();
+        try {
+            admission.admit(AdmissionController.Kind.LIGHT);
+            fail("admitted past a full queue");
+        } catch (AdmissionController.RejectedException e) {
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+        }
+        assertNull(admission.current());
+
+        release.countDown();
+        holder.join();
+        waiter.join();
+        assertEquals(2, admission.getAdmittedCount(AdmissionController.Kind.LIGHT));
+        assertEquals(1, admission.getRejectedCount(AdmissionController.Kind.LIGHT));
+        assertEquals(1, admission.getMaxQueueDepth(AdmissionController.Kind.LIGHT));
+        assertEquals(0, admission.getActiveCount(AdmissionController.Kind.LIGHT));
+    }
+
+    @Test
+    public void rejectsWhenNoPermitFreesUpInTime() throws Exception {
+        AdmissionController admission = new AdmissionController(1, 1, 4, 20, 10000, 10000);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = holdPermit(admission, release);
+        try {
+            admission.admit(AdmissionController.Kind.LIGHT);
+            fail("admitted past the limit");
+        } catch (AdmissionController.RejectedException e) {
+            assertEquals(1, admission.getRejectedCount(AdmissionController.Kind.LIGHT));
+        }
+
+        // the heavy class has its own permits
+        admission.admit(AdmissionController.Kind.HEAVY).close();
+
+        release.countDown();
+        holder.join();
+    }
+
+    @Test
+    public void checkpointStopsAnOperationPastItsDeadline() throws Exception {
+        AdmissionController admission = new AdmissionController(1, 1, 1, 0, 10000, 1);
+        try (AdmissionController.Permit permit = admission.admit(AdmissionController.Kind.LIGHT)) {
+            Thread.sleep(5);
+            admission.checkpoint();
+            fail("ran past the deadline");
+        } catch (AdmissionController.CancelledException e) {
+            assertEquals(1, admission.getCancelledCount(AdmissionController.Kind.LIGHT));
+        }
+        assertEquals(0, admission.getActiveCount(AdmissionController.Kind.LIGHT));
+    }
+
+    @Test
+    public void cancelAllStopsRunningOperations() {
+        AdmissionController admission = new AdmissionController(1, 1, 1, 0, 10000, 10000);
+        try (AdmissionController.Permit permit = admission.admit(AdmissionController.Kind.HEAVY)) {
+            admission.checkpoint();
+            admission.cancelAll();
+            assertTrue(permit.isCancelled());
+            admission.checkpoint();
+            fail("ran after being cancelled");
+        } catch (AdmissionController.CancelledException e) {
+            assertEquals(1, admission.getCancelledCount(AdmissionController.Kind.HEAVY));
+        }
+    }
+
+    /**
+     * Admits a light operation on another thread and holds it until released.
+     */
+    private static Thread holdPermit(AdmissionController admission, CountDownLatch release)
+            throws InterruptedException {
+        CountDownLatch admitted = new CountDownLatch(1);
+        Thread holder = new Thread(() -> {
+            try (AdmissionController.Permit permit = admission.admit(AdmissionController.Kind.LIGHT)) {
+                admitted.countDown();
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        holder.start();
+        admitted.await();
+        return holder;
+    }
+}
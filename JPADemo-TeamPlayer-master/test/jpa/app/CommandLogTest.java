@@ -0,0 +1,65 @@
+package jpa.app;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CommandLogTest {
+
+    private Path file;
+
+    @Before
+    public void createFile() throws IOException {
+        file = Files.createTempFile("commands", ".log");
+        System.setProperty(CommandLog.COMMAND_LOG, file.toString());
+    }
+
+    @After
+    public void deleteFile() throws IOException {
+        System.clearProperty(CommandLog.COMMAND_LOG);
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void argumentsReadBackAsTyped() throws IOException {
+        CommandLog log = CommandLog.fromSystemProperties();
+        log.record("roster", "Los\tAngeles Lakers");
+        log.record("remove player", "Kobe\r\n", "C:\\Bryant\\t");
+        log.record("find");
+
+        List<CommandLog.Command> commands = CommandLog.read(file);
+
+        assertEquals(3, Files.readAllLines(file, StandardCharsets.UTF_8).size());
+        assertEquals(3, commands.size());
+        assertEquals("roster", commands.get(0).getName());
+        assertEquals(Collections.singletonList("Los\tAngeles Lakers"), commands.get(0).getArgs());
+        assertEquals(Arrays.asList("Kobe\r\n", "C:\\Bryant\\t"), commands.get(1).getArgs());
+        assertEquals(Collections.emptyList(), commands.get(2).getArgs());
+    }
+
+    @Test
+    public void eachRunStartsAFreshLog() throws IOException {
+        CommandLog.fromSystemProperties().record("roster", "Miami Heat");
+        CommandLog.fromSystemProperties().record("find");
+
+        List<CommandLog.Command> commands = CommandLog.read(file);
+
+        assertEquals(1, commands.size());
+        assertEquals("find", commands.get(0).getName());
+    }
+
+    @Test(expected = IOException.class)
+    public void malformedEscapesAreRejected() throws IOException {
+        Files.write(file, "0\troster\tLakers\\x\n".getBytes(StandardCharsets.UTF_8));
+        CommandLog.read(file);
+    }
+}
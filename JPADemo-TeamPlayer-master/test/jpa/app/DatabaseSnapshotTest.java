@@ -0,0 +1,189 @@
+package jpa.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+import jpa.entities.Player;
+import jpa.entities.Team;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class DatabaseSnapshotTest {
+
+    private static EntityManagerFactory emf;
+
+    private EntityManager em;
+    private Path file;
+    private Team lakers;
+    private Team heat;
+    private Player kobe;
+    private Player steve;
+    private Player chris;
+
+    @BeforeClass
+    public static void createDatabase() {
+        emf = TestDatabase.create("snapshot");
+    }
+
+    @AfterClass
+    public static void closeDatabase() {
+        emf.close();
+    }
+
+    @Before
+    public void loadTeams() throws IOException {
+        file = Files.createTempFile("sports", ".snapshot");
+        em = emf.createEntityManager();
+        em.getTransaction().begin();
+        em.createNamedQuery(Player.DELETE_ALL).executeUpdate();
+        em.createNamedQuery(Team.DELETE_ALL).executeUpdate();
+        lakers = new Team("Los Angeles Lakers", "West");
+        heat = new Team("Miami Heat", "East");
+        kobe = new Player("Kobe", "Bryant", 24, "The Black Mamba");
+        steve = new Player("Steve", "Nash", 10, null);
+        chris = new Player("Chris", "Bosh", 1, "Gotta go");
+        lakers.addPlayer(kobe);
+        lakers.addPlayer(steve);
+        heat.addPlayer(chris);
+        em.persist(lakers);
+        em.persist(heat);
+        em.getTransaction().commit();
+        em.clear();
+    }
+
+    @After
+    public void deleteFile() throws IOException {
+        em.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void restoreBringsBackTheSavedRows() throws IOException {
+        DatabaseSnapshot.save(em, file);
+
+        // replace everything, so restored ids differ from what the identities would hand out
+        em.getTransaction().begin();
+        em.createNamedQuery(Player.DELETE_ALL).executeUpdate();
+        em.createNamedQuery(Team.DELETE_ALL).executeUpdate();
+        Team nets = new Team("Brooklyn Nets", "East");
+        nets.addPlayer(new Player("Deron", "Williams", 8, null));
+        em.persist(nets);
+        em.getTransaction().commit();
+
+        DatabaseSnapshot.restore(em, file);
+
+        assertEquals(2, count("SELECT COUNT(*) FROM TEAM"));
+        assertEquals(3, count("SELECT COUNT(*) FROM PLAYER"));
+        Player restored = em.find(Player.class, kobe.getId());
+        assertEquals("Bryant", restored.getLastName());
+        assertEquals(24, restored.getJerseyNumber());
+        assertEquals("The Black Mamba", restored.getLastSpokenWords());
+        assertEquals(lakers.getId(), restored.getTeam().getId());
+        assertNull(em.find(Player.class, steve.getId()).getLastSpokenWords());
+        assertEquals(heat.getId(), em.find(Player.class, chris.getId()).getTeam().getId());
+        assertEquals(2, em.find(Team.class, lakers.getId()).getRoster().size());
+    }
+
+    @Test
+    public void restoredRowsKeepTheirForeignKey() throws IOException {
+        DatabaseSnapshot.save(em, file);
+        DatabaseSnapshot.restore(em, file);
+
+        assertEquals(1, count("SELECT COUNT(*) FROM SYS.SYSCONSTRAINTS WHERE CONSTRAINTNAME = 'FK_PLAYER_TEAM_ID'"));
+        assertEquals(3, count("SELECT COUNT(*) FROM PLAYER p JOIN TEAM t ON p.TEAM_ID = t.ID"));
+        em.getTransaction().begin();
+        try {
+            em.createNativeQuery("DELETE FROM TEAM WHERE ID = " + heat.getId()).executeUpdate();
+            fail("Chris Bosh still references the Heat");
+        } catch (PersistenceException expected) {
+            // FK_PLAYER_TEAM_ID is enforced on the restored rows
+        } finally {
+            em.getTransaction().rollback();
+        }
+    }
+
+    @Test
+    public void restoreRestartsTheIdentitiesPastTheRestoredIds() throws IOException {
+        DatabaseSnapshot.save(em, file);
+        DatabaseSnapshot.restore(em, file);
+
+        Team nets = new Team("Brooklyn Nets", "East");
+        Player deron = new Player("Deron", "Williams", 8, null);
+        nets.addPlayer(deron);
+        em.getTransaction().begin();
+        em.persist(nets);
+        em.getTransaction().commit();
+
+        // EclipseLink chooses the insert order, so don't assume which row got the highest id
+        assertEquals(Math.max(lakers.getId(), heat.getId()) + 1, (int) nets.getId());
+        assertEquals(Math.max(Math.max(kobe.getId(), steve.getId()), chris.getId()) + 1, (int) deron.getId());
+    }
+
+    @Test
+    public void versionOneSnapshotsRestoreWithoutQuotes() throws IOException {
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(file))) {
+            out.writeInt(0x53505254);
+            out.writeInt(1);
+            out.writeByte(1);  // TEAM: ID, team_name, LEAGUE, CAPTAIN, CITY
+            out.writeInt(7);
+            writeString(out, "Boston Celtics");
+            writeString(out, "East");
+            writeString(out, null);
+            writeString(out, null);
+            out.writeByte(0);
+            out.writeByte(1);  // PLAYER: ID, first_name, last_name, JERSEYNUMBER, TEAM_ID
+            out.writeInt(40);
+            writeString(out, "Paul");
+            writeString(out, "Pierce");
+            out.writeInt(34);
+            out.writeInt(7);
+            out.writeByte(0);
+        }
+
+        DatabaseSnapshot.restore(em, file);
+
+        Player paul = em.find(Player.class, 40);
+        assertEquals("Pierce", paul.getLastName());
+        assertEquals(7, (int) paul.getTeam().getId());
+        assertNull(paul.getLastSpokenWords());
+        assertEquals(1, count("SELECT COUNT(*) FROM PLAYER"));
+    }
+
+    @Test
+    public void restoreRejectsOtherFiles() throws IOException {
+        Files.write(file, "not a snapshot".getBytes(StandardCharsets.UTF_8));
+        try {
+            DatabaseSnapshot.restore(em, file);
+            fail("restored a text file");
+        } catch (IOException expected) {
+            // the tables are left alone
+        }
+        assertEquals(3, count("SELECT COUNT(*) FROM PLAYER"));
+    }
+
+    private int count(String sql) {
+        return ((Number) em.createNativeQuery(sql).getSingleResult()).intValue();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
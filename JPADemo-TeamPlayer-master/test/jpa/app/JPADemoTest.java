@@ -0,0 +1,127 @@
+package jpa.app;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Runs the JPADemo menu loop on its own thread, typing commands into its
+ * standard input and reading the replies from its standard output.
+ */
+public class JPADemoTest {
+
+    private static final long WAIT_MILLIS = 30000;
+
+    private static final Path SCHEMA_SCRIPT = Paths.get("schema.sql");
+
+    private static byte[] savedSchema;
+    private static InputStream savedIn;
+    private static PrintStream savedOut;
+    private static PipedOutputStream keyboard;
+    private static ByteArrayOutputStream screen;
+
+    @BeforeClass
+    public static void redirectConsole() throws IOException {
+        // the SportsPU unit of main writes schema.sql to the working directory
+        savedSchema = Files.exists(SCHEMA_SCRIPT) ? Files.readAllBytes(SCHEMA_SCRIPT) : null;
+        System.setProperty(ReadWriteRouter.PRIMARY_DRIVER, "org.apache.derby.jdbc.EmbeddedDriver");
+        System.setProperty(ReadWriteRouter.PRIMARY_URL, TestDatabase.url("demo"));
+        System.setProperty(AdmissionController.LIGHT_TIMEOUT, "1000");
+        savedIn = System.in;
+        savedOut = System.out;
+        keyboard = new PipedOutputStream();
+        screen = new ByteArrayOutputStream();
+        // JPADemo reads System.in once, when the class is initialized by main below
+        System.setIn(new PipedInputStream(keyboard));
+        System.setOut(new PrintStream(screen, true, "UTF-8"));
+    }
+
+    @AfterClass
+    public static void restoreConsole() throws IOException {
+        if (savedSchema != null) {
+            Files.write(SCHEMA_SCRIPT, savedSchema);
+        } else {
+            Files.deleteIfExists(SCHEMA_SCRIPT);
+        }
+        System.setIn(savedIn);
+        System.setOut(savedOut);
+        System.clearProperty(ReadWriteRouter.PRIMARY_DRIVER);
+        System.clearProperty(ReadWriteRouter.PRIMARY_URL);
+        System.clearProperty(AdmissionController.LIGHT_TIMEOUT);
+    }
+
+    @Test
+    public void lockTimeoutIsReportedAndTheLoopGoesOn() throws Exception {
+        Thread demo = new Thread(() -> JPADemo.main(new String[0]), "JPADemo");
+        demo.setDaemon(true);
+        demo.start();
+        awaitOutput("Your choice> ", 0);
+
+        try (Connection locker = DriverManager.getConnection(TestDatabase.url("demo"))) {
+            locker.setAutoCommit(false);
+            try (Statement statement = locker.createStatement()) {
+                statement.execute("LOCK TABLE PLAYER IN EXCLUSIVE MODE");
+            }
+            long start = System.nanoTime();
+            int from = type("roster", "Los Angeles Lakers");
+            awaitOutput("Command not completed: ", from);
+            long waitedMillis = (System.nanoTime() - start) / 1000000;
+            // the lock wait is capped at the 1 s light budget, not Derby's default of 60 s
+            assertTrue("waited " + waitedMillis + " ms", waitedMillis < 10000);
+            locker.rollback();
+        }
+
+        int from = type("roster", "Los Angeles Lakers");
+        awaitOutput("The roster: ", from);
+        assertFalse(output().substring(from).contains("Command not completed"));
+
+        type("quit");
+        demo.join(WAIT_MILLIS);
+        assertFalse("the menu loop did not stop", demo.isAlive());
+    }
+
+    private static int type(String... lines) throws IOException {
+        int from = output().length();
+        for (String line : lines) {
+            keyboard.write((line + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+        }
+        keyboard.flush();
+        return from;
+    }
+
+    private static void awaitOutput(String text, int from) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (output().indexOf(text, from) < 0) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("no \"" + text + "\" in: " + output().substring(from));
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    private static String output() {
+        try {
+            return screen.toString("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package jpa.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void maximumIsExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(1000));
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(1983));
+
+        assertEquals(1983, histogram.getMax());
+        assertEquals(1983, histogram.getPercentile(1.0));
+        // the other percentiles report the lower bound of a bucket
+        assertEquals(1920, histogram.getPercentile(0.99));
+    }
+
+    @Test
+    public void percentilesAreWithinABucketOfTheRecordedValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1; micros <= 1000; micros++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(micros));
+        }
+
+        assertEquals(1000, histogram.getCount());
+        long median = histogram.getPercentile(0.5);
+        assertTrue(median <= 500 && median >= 500 * 15 / 16);
+        assertEquals(10, histogram.getPercentile(0.01));
+    }
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(0.5));
+        assertEquals(0, histogram.getPercentile(1.0));
+    }
+}
@@ -0,0 +1,171 @@
+package jpa.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+import jpa.entities.Player;
+import jpa.entities.Team;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LeaguePartitionsTest {
+
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+
+    private LeaguePartitions partitions;
+
+    @Before
+    public void createPartitions() {
+        // fresh databases for every test, since some tests break a partition
+        int run = DATABASES.incrementAndGet();
+        Map<String, String> leagueUrls = new LinkedHashMap<>();
+        leagueUrls.put("West", TestDatabase.url("west" + run));
+        leagueUrls.put("East", TestDatabase.url("east" + run));
+        partitions = new LeaguePartitions("SportsPU", TestDatabase.properties("west" + run), leagueUrls);
+
+        Team lakers = new Team("Los Angeles Lakers", "West");
+        lakers.addPlayer(new Player("Kobe", "Bryant", 24, null));
+        lakers.addPlayer(new Player("Steve", "Nash", 10, null));
+        Team heat = new Team("Miami Heat", "East");
+        heat.addPlayer(new Player("Chris", "Bosh", 1, null));
+        heat.addPlayer(new Player("Steve", "Nash", 11, null));  // a namesake in the other league
+        partitions.persist(lakers);
+        partitions.persist(heat);
+    }
+
+    @After
+    public void closePartitions() {
+        partitions.close();
+    }
+
+    @Test
+    public void persistGoesToTheLeaguesPartition() {
+        assertEquals(1, countTeams("West"));
+        assertEquals(1, countTeams("East"));
+        assertNotNull(partitions.findTeam("West", "Los Angeles Lakers"));
+        assertNull(partitions.findTeam("East", "Los Angeles Lakers"));
+
+        try {
+            partitions.persist(new Team("Toronto Raptors", "North"));
+            fail("persisted a team of a league without a partition");
+        } catch (IllegalArgumentException expected) {
+            // no partition for North
+        }
+    }
+
+    @Test
+    public void lookupsWithoutALeagueScatterToEveryPartition() {
+        Team heat = partitions.findTeam("Miami Heat");
+        assertNotNull(heat);
+        assertEquals("East", heat.getLeague());
+        assertNull(partitions.findTeam("Toronto Raptors"));
+
+        assertEquals(2, partitions.getRoster("Los Angeles Lakers").size());
+        assertEquals(2, partitions.getRoster("Miami Heat").size());
+        assertEquals(2, partitions.getRoster("East", "Miami Heat").size());
+        assertTrue(partitions.getRoster("West", "Miami Heat").isEmpty());
+
+        assertEquals(2, partitions.removePlayer("Steve", "Nash"));
+        assertEquals(1, partitions.getRoster("Los Angeles Lakers").size());
+        assertEquals(1, partitions.getRoster("Miami Heat").size());
+    }
+
+    @Test
+    public void deleteAllRunsOnThePartitionsInParallel() throws Exception {
+        // hold a lock on the West teams so West's delete has to wait
+        EntityManager west = partitions.partitionFor("West").createEntityManager();
+        west.getTransaction().begin();
+        west.createNativeQuery("LOCK TABLE TEAM IN EXCLUSIVE MODE").executeUpdate();
+
+        ExecutorService caller = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> deleted = caller.submit(partitions::deleteAll);
+
+            // East finishes while West is still blocked, so they are not run one after the other
+            long deadline = System.currentTimeMillis() + 10000;
+            while (countTeams("East") > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, countTeams("East"));
+            assertFalse(deleted.isDone());
+
+            west.getTransaction().rollback();
+            assertEquals(Integer.valueOf(2), deleted.get(10, TimeUnit.SECONDS));
+            assertEquals(0, countTeams("West"));
+        } finally {
+            if (west.getTransaction().isActive()) {
+                west.getTransaction().rollback();
+            }
+            west.close();
+            caller.shutdownNow();
+        }
+    }
+
+    @Test
+    public void aFailingPartitionFailsTheOperationButNotTheOthers() {
+        EntityManager east = partitions.partitionFor("East").createEntityManager();
+        east.getTransaction().begin();
+        east.createNativeQuery("RENAME TABLE PLAYER TO PLAYER_GONE").executeUpdate();
+        east.getTransaction().commit();
+        east.close();
+
+        try {
+            partitions.removePlayer("Steve", "Nash");
+            fail("the East partition has no PLAYER table");
+        } catch (PersistenceException expected) {
+            assertNotNull(expected.getCause());
+        }
+        // each partition has its own transaction, so West's delete was kept
+        assertEquals(1, partitions.getRoster("West", "Los Angeles Lakers").size());
+
+        try {
+            partitions.getRoster("Miami Heat");
+            fail("the East partition has no PLAYER table");
+        } catch (PersistenceException expected) {
+            // a read that needs every partition fails as a whole
+        }
+        assertEquals(1, partitions.getRoster("West", "Los Angeles Lakers").size());
+    }
+
+    @Test
+    public void partitionsDoNotWriteTheSchemaScript() throws IOException {
+        Path script = Files.createTempFile("partition-schema", ".sql");
+        Files.delete(script);
+        int run = DATABASES.incrementAndGet();
+        Map<String, String> properties = TestDatabase.properties("north" + run);
+        properties.put("javax.persistence.schema-generation.scripts.action", "create");
+        properties.put("javax.persistence.schema-generation.scripts.create-target", script.toString());
+        Map<String, String> leagueUrls = new LinkedHashMap<>();
+        leagueUrls.put("North", TestDatabase.url("north" + run));
+
+        new LeaguePartitions("SportsPU", properties, leagueUrls).close();
+
+        assertFalse(Files.exists(script));
+    }
+
+    private int countTeams(String league) {
+        EntityManager em = partitions.partitionFor(league).createEntityManager();
+        try {
+            return ((Number) em.createNativeQuery("SELECT COUNT(*) FROM TEAM").getSingleResult()).intValue();
+        } finally {
+            em.close();
+        }
+    }
+}
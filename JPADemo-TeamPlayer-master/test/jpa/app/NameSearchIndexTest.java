@@ -0,0 +1,135 @@
+package jpa.app;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import jpa.entities.Player;
+import jpa.entities.Team;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NameSearchIndexTest {
+
+    private static final int KOBE = 1;
+    private static final int KOBEY = 2;
+    private static final int HEATH = 3;
+    private static final int DWYANE = 4;
+    private static final int BLAKE = 5;
+
+    private NameSearchIndex index;
+
+    @Before
+    public void createIndex() {
+        index = new NameSearchIndex();
+        index.add(KOBE, "Kobe", "Bryant", "Los Angeles Lakers");
+        index.add(KOBEY, "Kobey", "Bryanton", "Los Angeles Lakers");
+        index.add(HEATH, "Heath", "Jones", "Los Angeles Lakers");
+        index.add(DWYANE, "Dwyane", "Wade", "Miami Heat");
+        index.add(BLAKE, "Blake", "Griffin", "Los Angeles Clippers");
+    }
+
+    @Test
+    public void prefixesMatchAsYouType() {
+        assertArrayEquals(new int[]{KOBE, KOBEY}, index.search("bry", 10));
+        assertArrayEquals(new int[]{BLAKE}, index.search("los angeles cl", 10));
+        assertArrayEquals(new int[]{KOBE}, index.search("bry", 1));
+    }
+
+    @Test
+    public void exactWordsRankAbovePrefixes() {
+        assertArrayEquals(new int[]{KOBE, KOBEY}, index.search("kobe", 10));
+        assertArrayEquals(new int[]{KOBE, KOBEY}, index.search("bryant", 10));
+        assertArrayEquals(new int[]{KOBEY}, index.search("kobey", 10));
+    }
+
+    @Test
+    public void playerNamesRankAboveTeamNames() {
+        assertArrayEquals(new int[]{HEATH, DWYANE}, index.search("heat", 10));
+    }
+
+    @Test
+    public void misspellingsFallBackToTrigrams() {
+        assertArrayEquals(new int[]{KOBE, KOBEY}, index.search("kobee", 10));
+        assertArrayEquals(new int[0], index.search("xyz", 10));
+    }
+
+    @Test
+    public void separatorsAroundTheQueryAreIgnored() {
+        assertArrayEquals(new int[]{KOBE, KOBEY}, index.search("-kobe", 10));
+        assertArrayEquals(new int[]{KOBE, KOBEY}, index.search("  kobe, bryant. ", 10));
+        assertArrayEquals(new int[0], index.search(" - ", 10));
+    }
+
+    @Test
+    public void removeByNameRemovesOnlyThatPlayer() {
+        index.removeByName("Kobe", "Bryant");
+
+        assertEquals(4, index.size());
+        assertArrayEquals(new int[]{KOBEY}, index.search("kobe", 10));
+    }
+
+    @Test
+    public void removeTeamRemovesItsRoster() {
+        index.removeTeam("Los Angeles Lakers");
+
+        assertEquals(2, index.size());
+        assertArrayEquals(new int[]{BLAKE}, index.search("los angeles", 10));
+        assertArrayEquals(new int[0], index.search("kobe", 10));
+    }
+
+    @Test
+    public void moveTeamReindexesTheRosterUnderTheNewName() {
+        index.moveTeam("Los Angeles Clippers", "Miami Heat");
+
+        assertEquals(5, index.size());
+        assertArrayEquals(new int[0], index.search("clippers", 10));
+        assertArrayEquals(new int[]{DWYANE, BLAKE}, index.search("miami", 10));  // shorter name first
+        assertArrayEquals(new int[]{BLAKE}, index.search("blake miami", 10));
+    }
+
+    @Test
+    public void searchesStayCorrectAcrossCompaction() {
+        for (int id = 100; id < 120; id++) {
+            index.add(id, "Rookie", "Number" + id, "Brooklyn Nets");
+        }
+        index.removeTeam("Brooklyn Nets");  // 20 of 25 documents deleted: compacts
+        index.add(KOBE, "Kobe", "Bryant", "Brooklyn Nets");  // replaces a live document
+
+        assertEquals(5, index.size());
+        assertArrayEquals(new int[0], index.search("rookie", 10));
+        assertArrayEquals(new int[]{KOBE}, index.search("nets", 10));
+        assertArrayEquals(new int[]{KOBE, KOBEY}, index.search("kobe", 10));
+        assertArrayEquals(new int[]{BLAKE}, index.search("clippers", 10));
+
+        index.add(100, "Rookie", "Number100", "Brooklyn Nets");
+        assertArrayEquals(new int[]{100}, index.search("rookie", 10));
+    }
+
+    @Test
+    public void buildReadsEveryPlayer() {
+        EntityManagerFactory emf = TestDatabase.create("searchIndex");
+        EntityManager em = emf.createEntityManager();
+        try {
+            Team nets = new Team("Brooklyn Nets", "East");
+            em.getTransaction().begin();
+            em.persist(nets);
+            for (int i = 0; i < 25; i++) {
+                Player player = new Player("Rookie", "Number" + i, 10 + i, "");
+                nets.addPlayer(player);
+                em.persist(player);
+            }
+            em.getTransaction().commit();
+
+            NameSearchIndex built = NameSearchIndex.build(em);
+
+            assertEquals(25, built.size());
+            assertEquals(25, built.search("rookie brooklyn", 100).length);
+            assertEquals(1, built.search("number7", 100).length);
+        } finally {
+            em.close();
+            emf.close();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package jpa.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import jpa.entities.Player;
+import jpa.entities.Team;
+import org.eclipse.persistence.jpa.JpaEntityManager;
+import org.eclipse.persistence.jpa.JpaQuery;
+import org.eclipse.persistence.queries.DatabaseQuery;
+import org.eclipse.persistence.sessions.DatabaseRecord;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class PlayerQuotesTest {
+
+    private static EntityManagerFactory emf;
+    private static Map<Integer, String> expected;
+
+    private EntityManager em;
+
+    @BeforeClass
+    public static void loadTeam() {
+        EntityManagerFactory loader = TestDatabase.create("quotes");
+        EntityManager em = loader.createEntityManager();
+        em.getTransaction().begin();
+        Team lakers = new Team("Los Angeles Lakers", "West");
+        // spans three IdChunks of 100; every tenth player has no quote
+        for (int number = 0; number < 250; number++) {
+            lakers.addPlayer(new Player("Laker", "No" + number, number, number % 10 == 0 ? null : "Quote " + number));
+        }
+        em.persist(lakers);
+        em.getTransaction().commit();
+        expected = new HashMap<>();
+        for (Player player : lakers.getRoster()) {
+            expected.put(player.getId(), player.getLastSpokenWords());
+        }
+        em.close();
+        loader.close();
+
+        // a new factory, as evicting only invalidates cached players and they keep their quotes
+        Map<String, String> properties = TestDatabase.properties("quotes");
+        properties.put("javax.persistence.schema-generation.database.action", "none");
+        emf = Persistence.createEntityManagerFactory("SportsPU", properties);
+    }
+
+    @AfterClass
+    public static void closeDatabase() {
+        emf.close();
+    }
+
+    @Before
+    public void createEntityManager() {
+        em = emf.createEntityManager();
+    }
+
+    @After
+    public void closeEntityManager() {
+        em.close();
+    }
+
+    @Test
+    public void fetchReadsQuotesAcrossChunks() {
+        List<Integer> wanted = new ArrayList<>(expected.keySet());
+        wanted.add(wanted.get(0));  // duplicates are asked for once
+        wanted.add(-1);  // no such player
+
+        Map<Integer, String> quotes = PlayerQuotes.fetch(em, wanted);
+
+        assertEquals(expected, quotes);
+    }
+
+    @Test
+    public void fetchOfNothingRunsNoQuery() {
+        assertTrue(PlayerQuotes.fetch(em, new ArrayList<Integer>()).isEmpty());
+    }
+
+    @Test
+    public void rosterQueryLeavesQuotesUnloaded() {
+        // fails when the entities were not woven, as EclipseLink then reads lazy basics eagerly
+        List<Player> roster = em.createNamedQuery(Player.GET_PLAYER_LIST, Player.class)
+                .setParameter("name", "Los Angeles Lakers")
+                .getResultList();
+
+        assertEquals(250, roster.size());
+        for (Player player : roster) {
+            assertFalse(emf.getPersistenceUnitUtil().isLoaded(player, "quote"));
+        }
+    }
+
+    @Test
+    public void rosterQueryDoesNotSelectTheQuote() {
+        DatabaseQuery query = em.createNamedQuery(Player.GET_PLAYER_LIST)
+                .unwrap(JpaQuery.class)
+                .getDatabaseQuery();
+        query.prepareCall(em.unwrap(JpaEntityManager.class).getActiveSession(), new DatabaseRecord());
+
+        String sql = query.getSQLString().toUpperCase();
+        assertTrue(sql, sql.contains("LAST_NAME"));
+        assertFalse(sql, sql.contains("QUOTE"));
+    }
+}
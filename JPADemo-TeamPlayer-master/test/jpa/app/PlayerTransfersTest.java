@@ -0,0 +1,124 @@
+package jpa.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import jpa.entities.Player;
+import jpa.entities.Team;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class PlayerTransfersTest {
+
+    private static EntityManagerFactory emf;
+
+    private EntityManager em;
+    private Team lakers;
+    private Team clippers;
+    private Team heat;
+
+    @BeforeClass
+    public static void createDatabase() {
+        emf = TestDatabase.create("transfers");
+    }
+
+    @AfterClass
+    public static void closeDatabase() {
+        emf.close();
+    }
+
+    @Before
+    public void loadTeams() {
+        em = emf.createEntityManager();
+        em.getTransaction().begin();
+        em.createNamedQuery(Player.DELETE_ALL).executeUpdate();
+        em.createNamedQuery(Team.DELETE_ALL).executeUpdate();
+        lakers = new Team("Los Angeles Lakers", "West");
+        clippers = new Team("Los Angeles Clippers", "West");
+        heat = new Team("Miami Heat", "East");
+        // more than one IdChunks.SIZE between them
+        for (int number = 0; number < 80; number++) {
+            lakers.addPlayer(new Player("Laker", "No" + number, number, null));
+            clippers.addPlayer(new Player("Clipper", "No" + number, number, null));
+        }
+        heat.addPlayer(new Player("Chris", "Bosh", 1, null));
+        em.persist(lakers);
+        em.persist(clippers);
+        em.persist(heat);
+        em.getTransaction().commit();
+    }
+
+    @After
+    public void closeEntityManager() {
+        em.close();
+    }
+
+    @Test
+    public void transferKeepsManagedRostersInStep() {
+        List<Player> moving = new ArrayList<>(lakers.getRoster());
+        moving.addAll(clippers.getRoster());
+        Player staying = heat.getRoster().iterator().next();
+
+        int moved = new PlayerTransfers(em).transfer(moving, heat);
+
+        assertEquals(160, moved);
+        assertEquals(0, lakers.getRoster().size());
+        assertEquals(0, clippers.getRoster().size());
+        assertEquals(161, heat.getRoster().size());
+        for (Player player : moving) {
+            assertSame(heat, player.getTeam());
+        }
+        assertSame(heat, staying.getTeam());
+        assertEquals(161, rosterSizeInNewEntityManager(heat));
+        assertEquals(0, rosterSizeInNewEntityManager(lakers));
+    }
+
+    @Test
+    public void transferRosterKeepsManagedRostersInStep() {
+        List<Player> lakersPlayers = new ArrayList<>(lakers.getRoster());
+
+        int moved = new PlayerTransfers(em).transferRoster(lakers, clippers);
+
+        assertEquals(80, moved);
+        assertEquals(0, lakers.getRoster().size());
+        assertEquals(160, clippers.getRoster().size());
+        assertTrue(clippers.getRoster().containsAll(lakersPlayers));
+        for (Player player : lakersPlayers) {
+            assertSame(clippers, player.getTeam());
+        }
+        assertEquals(160, rosterSizeInNewEntityManager(clippers));
+        assertEquals(0, rosterSizeInNewEntityManager(lakers));
+    }
+
+    @Test
+    public void transferRosterRefreshesTheSharedCache() {
+        // load the rosters into the shared cache through another EntityManager
+        assertEquals(80, rosterSizeInNewEntityManager(lakers));
+        assertEquals(80, rosterSizeInNewEntityManager(clippers));
+        em.clear();
+        Team from = em.find(Team.class, lakers.getId());
+        Team to = em.find(Team.class, clippers.getId());
+
+        new PlayerTransfers(em).transferRoster(from, to);
+
+        assertEquals(0, rosterSizeInNewEntityManager(lakers));
+        assertEquals(160, rosterSizeInNewEntityManager(clippers));
+    }
+
+    private static int rosterSizeInNewEntityManager(Team team) {
+        EntityManager other = emf.createEntityManager();
+        try {
+            return other.find(Team.class, team.getId()).getRoster().size();
+        } finally {
+            other.close();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package jpa.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import javax.persistence.EntityManager;
+import jpa.entities.Team;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReadWriteRouterTest {
+
+    private ReadWriteRouter router;
+    private EntityManager primaryManager;
+
+    @Before
+    public void createRouter() {
+        Map<String, String> primary = TestDatabase.properties("routerPrimary");
+        Map<String, String> replica = TestDatabase.properties("routerReplica");
+        router = new ReadWriteRouter("SportsPU", primary, replica,
+                Collections.singletonList(TestDatabase.url("routerReplica")), true);
+        primaryManager = router.getPrimary().createEntityManager();
+
+        // a write in a unit of work is copied to the replica when the unit of work closes
+        try (ReadWriteRouter.UnitOfWork work = router.begin()) {
+            router.markWrite();
+            primaryManager.getTransaction().begin();
+            primaryManager.persist(new Team("Los Angeles Lakers", "West"));
+            primaryManager.getTransaction().commit();
+        }
+
+        // a write outside a unit of work is not, so it only exists on the primary
+        primaryManager.getTransaction().begin();
+        primaryManager.persist(new Team("Miami Heat", "East"));
+        primaryManager.getTransaction().commit();
+    }
+
+    @After
+    public void closeRouter() {
+        primaryManager.close();
+        router.close();
+    }
+
+    @Test
+    public void readsGoToTheReplicaUntilTheUnitOfWorkWrites() {
+        try (ReadWriteRouter.UnitOfWork work = router.begin()) {
+            EntityManager reader = router.forRead(primaryManager);
+            assertNotSame(primaryManager, reader);
+            assertSame(reader, router.forRead(primaryManager));
+            assertEquals(1, findTeam(reader, "Los Angeles Lakers").size());
+            assertTrue(findTeam(reader, "Miami Heat").isEmpty());
+
+            router.markWrite();
+
+            assertTrue(work.hasWritten());
+            assertSame(primaryManager, router.forRead(primaryManager));
+            assertEquals(1, findTeam(router.forRead(primaryManager), "Miami Heat").size());
+        }
+    }
+
+    @Test
+    public void readsOutsideAUnitOfWorkGoToThePrimary() {
+        assertSame(primaryManager, router.forRead(primaryManager));
+    }
+
+    @Test
+    public void closingAUnitOfWorkThatWroteSyncsTheReplicas() {
+        try (ReadWriteRouter.UnitOfWork work = router.begin()) {
+            router.markWrite();
+        }
+        try (ReadWriteRouter.UnitOfWork work = router.begin()) {
+            EntityManager reader = router.forRead(primaryManager);
+            assertNotSame(primaryManager, reader);
+            assertEquals(1, findTeam(reader, "Miami Heat").size());
+        }
+    }
+
+    private static List<Team> findTeam(EntityManager em, String name) {
+        return em.createNamedQuery(Team.GET_BY_NAME, Team.class)
+                .setParameter("name", name)
+                .getResultList();
+    }
+}
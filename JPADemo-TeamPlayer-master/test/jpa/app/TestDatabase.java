@@ -0,0 +1,45 @@
+package jpa.app;
+
+import java.util.HashMap;
+import java.util.Map;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+/**
+ * In-memory Derby databases for the tests, built from the SportsPU persistence
+ * unit with the schema created but no schema.sql written.
+ */
+final class TestDatabase {
+
+    private TestDatabase() {
+    }
+
+    /**
+     * @param name name of the in-memory database, unique per test class
+     * @return the persistence unit overrides for that database
+     */
+    static Map<String, String> properties(String name) {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("javax.persistence.jdbc.driver", "org.apache.derby.jdbc.EmbeddedDriver");
+        properties.put("javax.persistence.jdbc.url", url(name));
+        properties.put("javax.persistence.schema-generation.scripts.action", "none");
+        properties.put("eclipselink.logging.level", "WARNING");
+        return properties;
+    }
+
+    /**
+     * @param name name of the in-memory database
+     * @return its JDBC url
+     */
+    static String url(String name) {
+        return "jdbc:derby:memory:" + name + ";create=true";
+    }
+
+    /**
+     * @param name name of the in-memory database, unique per test class
+     * @return a factory for a freshly created schema in that database
+     */
+    static EntityManagerFactory create(String name) {
+        return Persistence.createEntityManagerFactory("SportsPU", properties(name));
+    }
+}
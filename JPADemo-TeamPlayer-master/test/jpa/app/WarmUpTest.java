@@ -0,0 +1,51 @@
+package jpa.app;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import javax.persistence.EntityManagerFactory;
+import jpa.entities.Player;
+import jpa.entities.Team;
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WarmUpTest {
+
+    private ReadWriteRouter router;
+
+    @Before
+    public void createRouter() {
+        router = new ReadWriteRouter("SportsPU", TestDatabase.properties("warmUpPrimary"),
+                TestDatabase.properties("warmUpReplica"),
+                Collections.singletonList(TestDatabase.url("warmUpReplica")), true);
+    }
+
+    @After
+    public void closeRouter() {
+        router.close();
+    }
+
+    @Test
+    public void warmsUpThePrimaryAndEveryReplica() throws InterruptedException {
+        EntityManagerFactory replica = router.getReplicas().get(0);
+        assertFalse(isPrepared(replica, Player.GET_PLAYER_LIST));
+
+        WarmUp warmUp = new WarmUp(router.getPrimary(), router.getReplicas());
+        assertFalse(warmUp.isReady());
+        warmUp.run();
+
+        assertTrue(warmUp.awaitReady(0, TimeUnit.MILLISECONDS));
+        assertTrue(isPrepared(router.getPrimary(), Player.GET_PLAYER_LIST));
+        assertTrue(isPrepared(router.getPrimary(), Team.DELETE_BY_NAME));
+        assertTrue(isPrepared(replica, Player.GET_PLAYER_LIST));
+        assertTrue(isPrepared(replica, Team.GET_BY_NAME));
+    }
+
+    private static boolean isPrepared(EntityManagerFactory emf, String queryName) {
+        return JpaHelper.getServerSession(emf).getQuery(queryName).isPrepared();
+    }
+}
@@ -0,0 +1,231 @@
+package jpa.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import jpa.entities.Player;
+import jpa.entities.Team;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class WriteBehindQueueTest {
+
+    private static final long NEVER = 3600000;
+
+    private static EntityManagerFactory emf;
+
+    private WriteBehindQueue queue;
+    private Team lakers;
+    private Team clippers;
+    private Player kobe;
+    private Player steve;
+    private Player blake;
+
+    @BeforeClass
+    public static void createDatabase() {
+        emf = TestDatabase.create("writeBehind");
+    }
+
+    @AfterClass
+    public static void closeDatabase() {
+        emf.close();
+    }
+
+    @Before
+    public void loadTeams() {
+        EntityManager em = emf.createEntityManager();
+        em.getTransaction().begin();
+        em.createNamedQuery(Player.DELETE_ALL).executeUpdate();
+        em.createNamedQuery(Team.DELETE_ALL).executeUpdate();
+        lakers = new Team("Los Angeles Lakers", "West");
+        clippers = new Team("Los Angeles Clippers", "West");
+        kobe = new Player("Kobe", "Bryant", 24, "The Black Mamba");
+        steve = new Player("Steve", "Nash", 10, "Canadian wonder");
+        blake = new Player("Blake", "Griffin", 32, "The new Highlight Film");
+        lakers.addPlayer(kobe);
+        lakers.addPlayer(steve);
+        clippers.addPlayer(blake);
+        em.persist(lakers);
+        em.persist(clippers);
+        em.getTransaction().commit();
+        em.close();
+        emf.getCache().evictAll();
+    }
+
+    @After
+    public void closeQueue() {
+        if (queue != null) {
+            queue.close();
+        }
+    }
+
+    @Test
+    public void coalescesUpdatesToTheSameEntity() {
+        queue = new WriteBehindQueue(emf, 1000, NEVER, false);
+        for (int number = 1; number <= 100; number++) {
+            kobe.setJerseyNumber(number);
+            queue.update(kobe);
+        }
+        assertEquals(1, queue.getPendingCount());
+
+        queue.flush();
+
+        assertEquals(100, queue.getWritesQueued());
+        assertEquals(99, queue.getWritesCoalesced());
+        assertEquals(1, queue.getWritesFlushed());
+        assertEquals(1, queue.getFlushCount());
+        assertEquals(100, read(kobe).getJerseyNumber());
+    }
+
+    @Test
+    public void flushesWhenMaxPendingIsReached() throws InterruptedException {
+        queue = new WriteBehindQueue(emf, 3, NEVER, false);
+        kobe.setJerseyNumber(8);
+        queue.update(kobe);
+        queue.update(steve);
+        assertEquals(0, queue.getFlushCount());
+
+        queue.update(blake);
+
+        awaitFlush();
+        assertEquals(3, queue.getWritesFlushed());
+        assertEquals(8, read(kobe).getJerseyNumber());
+    }
+
+    @Test
+    public void flushesWhenIntervalElapses() throws InterruptedException {
+        queue = new WriteBehindQueue(emf, 1000, 50, false);
+        kobe.setJerseyNumber(8);
+        queue.update(kobe);
+
+        awaitFlush();
+        assertEquals(8, read(kobe).getJerseyNumber());
+    }
+
+    @Test
+    public void writesStateAsItWasWhenQueued() {
+        queue = new WriteBehindQueue(emf, 1000, NEVER, false);
+        kobe.setJerseyNumber(8);
+        queue.update(kobe);
+        kobe.setJerseyNumber(33);
+
+        queue.flush();
+
+        assertEquals(8, read(kobe).getJerseyNumber());
+    }
+
+    @Test
+    public void removedTeamDropsUpdatesOfItsPlayers() {
+        queue = new WriteBehindQueue(emf, 1000, NEVER, false);
+        steve.setJerseyNumber(13);
+        queue.update(steve);
+        queue.remove(lakers);
+        kobe.setJerseyNumber(8);
+        queue.update(kobe);
+
+        queue.flush();
+        queue.close();
+
+        assertEquals(0, queue.getFlushFailures());
+        assertEquals(0, queue.getPendingCount());
+        assertEquals(2, queue.getWritesDropped());
+        assertNull(read(kobe));
+        assertNull(read(steve));
+        EntityManager em = emf.createEntityManager();
+        assertNull(em.find(Team.class, lakers.getId()));
+        em.close();
+        assertEquals(32, read(blake).getJerseyNumber());
+    }
+
+    @Test
+    public void removedPlayerDropsLaterUpdates() {
+        queue = new WriteBehindQueue(emf, 1000, NEVER, false);
+        queue.remove(kobe);
+        kobe.setJerseyNumber(8);
+        queue.update(kobe);
+
+        queue.flush();
+
+        assertEquals(1, queue.getWritesDropped());
+        assertNull(read(kobe));
+        assertEquals(10, read(steve).getJerseyNumber());
+    }
+
+    @Test
+    public void committedRemovalDoesNotDropUpdatesOfAReusedId() {
+        queue = new WriteBehindQueue(emf, 1000, NEVER, false);
+        queue.remove(kobe);
+        queue.flush();
+
+        // as after DatabaseSnapshot.restore, the identity hands out the removed id again
+        Player dwight = new Player("Dwight", "Howard", 12, "Superman");
+        EntityManager em = emf.createEntityManager();
+        em.getTransaction().begin();
+        em.createNativeQuery("ALTER TABLE PLAYER ALTER COLUMN ID RESTART WITH " + kobe.getId()).executeUpdate();
+        em.getTransaction().commit();
+        em.getTransaction().begin();
+        em.find(Team.class, lakers.getId()).addPlayer(dwight);
+        em.persist(dwight);
+        em.getTransaction().commit();
+        em.close();
+        assertEquals(kobe.getId(), dwight.getId());
+
+        dwight.setJerseyNumber(39);
+        queue.update(dwight);
+        queue.flush();
+
+        assertEquals(0, queue.getWritesDropped());
+        assertEquals(39, read(dwight).getJerseyNumber());
+    }
+
+    @Test
+    public void failingWriteDoesNotBlockTheOthers() {
+        queue = new WriteBehindQueue(emf, 1000, NEVER, false);
+        kobe.setLastName(null);  // PLAYER.LAST_NAME is NOT NULL
+        queue.update(kobe);
+        steve.setJerseyNumber(13);
+        queue.update(steve);
+
+        queue.flush();
+
+        assertEquals(1, queue.getFlushFailures());
+        assertEquals(1, queue.getWritesFlushed());
+        assertEquals(13, read(steve).getJerseyNumber());
+        assertEquals(1, queue.getPendingCount());
+
+        for (int flush = 1; flush < WriteBehindQueue.MAX_ATTEMPTS; flush++) {
+            queue.flush();
+        }
+
+        assertEquals(0, queue.getPendingCount());
+        List<WriteBehindQueue.DeadLetter> deadLetters = queue.getDeadLetters();
+        assertEquals(1, deadLetters.size());
+        assertEquals(Player.class, deadLetters.get(0).getEntityType());
+        assertEquals(kobe.getId(), deadLetters.get(0).getId());
+        assertEquals("Bryant", read(kobe).getLastName());
+    }
+
+    private void awaitFlush() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (queue.getFlushCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("no flush within 5 s", queue.getFlushCount() > 0);
+    }
+
+    private Player read(Player player) {
+        EntityManager em = emf.createEntityManager();
+        try {
+            return em.find(Player.class, player.getId());
+        } finally {
+            em.close();
+        }
+    }
+}